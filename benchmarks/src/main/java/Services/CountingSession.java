@@ -0,0 +1,61 @@
+package Services;
+
+import java.io.IOException;
+import java.util.UUID;
+
+// A ClientSession without a network behind it: frames are counted and dropped, so benchmarks
+// measure the server's own work rather than socket writes.
+public class CountingSession implements ClientSession {
+    private final UUID id = UUID.randomUUID();
+    private volatile int protocolVersion = 1;
+    private long frames;
+    private long bytes;
+
+    @Override
+    public UUID getId() { return id; }
+
+    @Override
+    public void send(String message) {
+        frames++;
+        bytes += message.length();
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) {
+        frames++;
+        bytes += frame.length;
+    }
+
+    @Override
+    public void sendEncoded(FrameEncoder encoder) throws IOException {
+        sendFrame(encoder.encode(protocolVersion));
+    }
+
+    @Override
+    public int getProtocolVersion() { return protocolVersion; }
+
+    @Override
+    public void switchProtocol(String reply, int version) {
+        send(reply);
+        this.protocolVersion = version;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean isOpen() { return true; }
+
+    @Override
+    public String getRemoteAddress() { return "benchmark"; }
+
+    @Override
+    public int getQueueDepth() { return 0; }
+
+    @Override
+    public long getDroppedCount() { return 0; }
+
+    public long getFrames() { return frames; }
+
+    public long getBytes() { return bytes; }
+}
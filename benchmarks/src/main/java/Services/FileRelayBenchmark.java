@@ -0,0 +1,117 @@
+package Services;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One file transfer relayed by DataTransferManager between two loopback connections, from the
+// sender's first byte to the receiver's last. Divide fileMb by the score for MB/s.
+// Runs once with the multiplexed channel relay (the default) and once with the
+// thread-per-transfer stream relay.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class FileRelayBenchmark {
+    @Param({"1", "64"})
+    public int fileMb;
+
+    private ServerSocketChannel dataPort;
+    private ExecutorService senderThread;
+    private ByteBuffer chunk;
+    private ByteBuffer sink;
+    private SocketChannel senderClient;
+    private SocketChannel receiverClient;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dataPort = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        senderThread = Executors.newSingleThreadExecutor();
+        DataTransferManager.setThreadExecutor(new ThreadExecutorService(2));
+        chunk = ByteBuffer.allocateDirect(256 * 1024);
+        sink = ByteBuffer.allocateDirect(256 * 1024);
+    }
+
+    // Pairs a fresh sender and receiver through the manager, as the data port listener does.
+    @Setup(Level.Invocation)
+    public void connect() throws IOException {
+        UUID transferId = UUID.randomUUID();
+        DataTransferManager.registerTransferSize(transferId, fileBytes());
+        senderClient = SocketChannel.open(dataPort.getLocalAddress());
+        DataTransferManager.handleNewDataConnection(transferId, dataPort.accept().socket());
+        receiverClient = SocketChannel.open(dataPort.getLocalAddress());
+        DataTransferManager.handleNewDataConnection(transferId, dataPort.accept().socket());
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() throws IOException {
+        senderClient.close();
+        receiverClient.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        senderThread.shutdownNow();
+        dataPort.close();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.relay.mode=channel", "-Dchat.log.level=WARNING"})
+    public long channelRelay() throws Exception {
+        return transfer();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.relay.mode=stream", "-Dchat.log.level=WARNING"})
+    public long streamRelay() throws Exception {
+        return transfer();
+    }
+
+    private long fileBytes() {
+        return fileMb * 1024L * 1024L;
+    }
+
+    private long transfer() throws Exception {
+        long size = fileBytes();
+        Future<?> sending = senderThread.submit(() -> {
+            long sent = 0;
+            while (sent < size) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), size - sent));
+                sent += senderClient.write(chunk);
+            }
+            return null;
+        });
+        long received = 0;
+        while (received < size) {
+            sink.clear();
+            int n = receiverClient.read(sink);
+            if (n < 0) break;
+            received += n;
+        }
+        sending.get();
+        if (received != size) throw new IllegalStateException("Relayed " + received + " of " + size + " bytes");
+        return received;
+    }
+}
@@ -0,0 +1,68 @@
+package Services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.models.User;
+
+// A login followed by a logout on the same session, against one shared LoginService,
+// from one thread and from several at once. Every thread cycles through its own users.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+public class LoginServiceBenchmark {
+    private static final int USERS_PER_THREAD = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        final LoginService loginService = new LoginService(new UserHandler());
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final CountingSession session = new CountingSession();
+        final String[] userNames = new String[USERS_PER_THREAD];
+        int next;
+
+        @Setup
+        public void setup(Registry registry) {
+            for (int i = 0; i < userNames.length; i++) {
+                userNames[i] = session.getId() + "-" + i;
+                // Register the users up front so the benchmark measures logins, not sign-ups.
+                registry.loginService.attemptLogin(userNames[i], session);
+                registry.loginService.logoutBySession(session.getId());
+            }
+        }
+    }
+
+    private static User loginAndLogout(Registry registry, Client client) {
+        User user = registry.loginService.attemptLogin(client.userNames[client.next++ & (USERS_PER_THREAD - 1)], client.session);
+        registry.loginService.logoutBySession(client.session.getId());
+        return user;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public User loginLogout(Registry registry, Client client) {
+        return loginAndLogout(registry, client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public User loginLogoutContended(Registry registry, Client client) {
+        return loginAndLogout(registry, client);
+    }
+}
@@ -0,0 +1,72 @@
+package Services;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The two ThreadExecutorService modes under a growing number of connections. Every connection is a
+// job that blocks a few times, as a session loop waiting on its socket does, sized like the server's
+// pool (one thread per core). The score is the time until every connection has been served.
+// Virtual threads need JDK 21+; on older JDKs "virtual" falls back to the platform pool, which the
+// setup reports on stderr, so run it with a newer JVM (e.g. -jvm /path/to/jdk-21/bin/java).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+@State(Scope.Benchmark)
+public class ThreadExecutorServiceBenchmark {
+    private static final int ROUNDS = 4;
+    private static final long IO_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"16", "256", "2048"})
+    public int connections;
+
+    private ThreadExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ThreadExecutorService.ExecutionMode requested = ThreadExecutorService.parseMode(mode);
+        executor = new ThreadExecutorService(Runtime.getRuntime().availableProcessors(), requested);
+        if (executor.getMode() != requested) {
+            System.err.println("WARNING: mode=" + mode + " is not available on Java " + System.getProperty("java.version")
+                    + "; this run measures " + executor.getMode() + " instead. Use a JDK 21+ JVM for the comparison.");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void serveConnections() throws InterruptedException {
+        CountDownLatch served = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            executor.addJob(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    LockSupport.parkNanos(IO_WAIT_NANOS);
+                }
+                served.countDown();
+            });
+        }
+        served.await();
+    }
+}
@@ -0,0 +1,91 @@
+package common.models;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.protocols.MessageProtocol;
+import server.storage.RoomHistory;
+
+// Lookups against an in-memory Datahandler spread over a few rooms: by message ID,
+// history pages, and per-room search.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dchat.log.level=WARNING"})
+@State(Scope.Benchmark)
+public class DatahandlerBenchmark {
+    private static final int ROOMS = 8;
+    private static final String[] WORDS = {
+        "deploy", "friday", "review", "lunch", "build", "release", "meeting", "coffee", "server", "client",
+        "bug", "fix", "test", "merge", "branch", "ticket", "design", "docs", "metrics", "latency"
+    };
+
+    @Param({"10000", "1000000"})
+    public int messages;
+
+    private Datahandler datahandler;
+    private UUID[] ids;
+    private UUID[] roomIds;
+
+    @Setup
+    public void setup() {
+        datahandler = new Datahandler();
+        MessageProtocol protocol = new MessageProtocol();
+        roomIds = new UUID[ROOMS];
+        for (int i = 0; i < ROOMS; i++) roomIds[i] = UUID.randomUUID();
+        ids = new UUID[messages];
+        for (int i = 0; i < messages; i++) {
+            String content = WORDS[i % WORDS.length] + " " + WORDS[(i / 7) % WORDS.length] + " note " + i;
+            MessageModel message = protocol.createTextMessage("user" + (i % 50), roomIds[i % ROOMS], content);
+            ids[i] = message.messageId;
+            datahandler.addMessageToArray(message);
+        }
+    }
+
+    @Benchmark
+    public MessageModel getMessageById() {
+        return datahandler.getMessageById(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    @Benchmark
+    public MessageModel getMessageByUnknownId() {
+        return datahandler.getMessageById(new UUID(ThreadLocalRandom.current().nextLong(), 42));
+    }
+
+    @Benchmark
+    public RoomHistory.Page latestHistoryPage() {
+        return datahandler.getRoomHistory(roomIds[ThreadLocalRandom.current().nextInt(ROOMS)]).latest(50);
+    }
+
+    // A page somewhere in the middle of a room's history, as when scrolling back.
+    @Benchmark
+    public RoomHistory.Page olderHistoryPage() {
+        RoomHistory history = datahandler.getRoomHistory(roomIds[ThreadLocalRandom.current().nextInt(ROOMS)]);
+        return history.before(history.latest(1).olderCursor / 2 + 1, 50);
+    }
+
+    @Benchmark
+    public List<MessageModel> searchTwoWords() {
+        return datahandler.getRoomHistory(roomIds[ThreadLocalRandom.current().nextInt(ROOMS)]).search("deploy review", 20);
+    }
+
+    @Benchmark
+    public List<MessageModel> searchPrefix() {
+        return datahandler.getRoomHistory(roomIds[ThreadLocalRandom.current().nextInt(ROOMS)]).search("rel*", 20);
+    }
+}
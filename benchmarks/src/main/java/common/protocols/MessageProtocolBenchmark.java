@@ -0,0 +1,53 @@
+package common.protocols;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.models.MessageModel;
+
+// Building and parsing SEND_MSG commands, for short and long message bodies.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageProtocolBenchmark {
+    @Param({"16", "512"})
+    public int contentLength;
+
+    private final MessageProtocol protocol = new MessageProtocol();
+    private final UUID roomId = UUID.randomUUID();
+    private String content;
+    private String command;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < contentLength) text.append("hello world ");
+        content = text.substring(0, contentLength);
+        command = protocol.buildTextMessage("alice", roomId, content);
+    }
+
+    @Benchmark
+    public String buildTextMessage() {
+        return protocol.buildTextMessage("alice", roomId, content);
+    }
+
+    @Benchmark
+    public MessageModel parseMessage() {
+        return protocol.parseMessage(command);
+    }
+}
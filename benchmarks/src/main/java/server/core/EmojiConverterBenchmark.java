@@ -0,0 +1,58 @@
+package server.core;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// EmojiConverter.convert on typical messages, next to the replace-per-shortcut loop it replaced
+// (legacyConvert) as a baseline.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EmojiConverterBenchmark {
+    @Param({
+        "plain",      // no shortcuts at all, the common case
+        "emoticons",  // a few ASCII emoticons
+        "named"       // :name: shortcuts
+    })
+    public String text;
+
+    private static final Map<String, String> MESSAGES = Map.of(
+        "plain", "Are we still meeting at three? I will bring the slides and the notes from yesterday.",
+        "emoticons", "Great news :) see you tomorrow ;-) bring snacks <3 and coffee :D",
+        "named", "Deploy is done :rocket: all tests green :check: thanks team :party: :thumbsup:"
+    );
+    private static final Map<String, String> SHORTCUTS = EmojiConverter.getSupportedEmojis();
+
+    @Benchmark
+    public String convert() {
+        return EmojiConverter.convert(MESSAGES.get(text));
+    }
+
+    @Benchmark
+    public String legacyConvert() {
+        String result = MESSAGES.get(text);
+        for (Map.Entry<String, String> entry : SHORTCUTS.entrySet()) {
+            String shortcut = entry.getKey();
+            if (shortcut.startsWith(":") && shortcut.endsWith(":") && shortcut.length() > 2) {
+                result = result.replaceAll("\\b" + shortcut.replaceAll("([\\[\\](){}*+?^$|\\\\])", "\\\\$1") + "\\b", entry.getValue());
+            } else {
+                result = result.replace(shortcut, entry.getValue());
+            }
+        }
+        return result;
+    }
+}
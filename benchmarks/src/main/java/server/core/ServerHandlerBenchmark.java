@@ -0,0 +1,150 @@
+package server.core;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Services.ChatroomManager;
+import Services.CountingSession;
+import Services.LoginService;
+import Services.UserHandler;
+import common.models.ChatRoom;
+import common.models.Datahandler;
+import common.models.MessageModel;
+import common.protocols.MessageProtocol;
+import server.pipeline.MessagePipeline;
+import server.storage.RetentionPolicy;
+
+// Whole commands through ServerHandler.handleClientMessage, with in-memory sessions:
+// SEND_MSG through the message pipeline and out to every room member, and JOIN_ROOM with
+// its history page.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.limit.enabled=false", "-Dchat.log.level=WARNING"})
+public class ServerHandlerBenchmark {
+    // Distinct message IDs are reused only after the room's retention has evicted the old ones.
+    private static final int DISTINCT_MESSAGES = 1 << 16;
+    private static final int RETAINED_MESSAGES = 1 << 14;
+
+    // Rooms are shared server-wide; the benchmarks use the default Lobby.
+    static UUID lobbyId() {
+        for (ChatRoom room : ChatroomManager.getAllChatrooms().values()) {
+            if (room.getRoomName().equals("Lobby")) return room.getId();
+        }
+        throw new IllegalStateException("No Lobby room");
+    }
+
+    static ServerHandler connect(String userName, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) {
+        ServerHandler handler = new ServerHandler(new CountingSession(), loginService, datahandler, pipeline);
+        handler.onConnect();
+        handler.handleClientMessage("LOGIN::" + userName);
+        return handler;
+    }
+
+    static String[] sendCommands(String sender, UUID roomId) {
+        MessageProtocol protocol = new MessageProtocol();
+        String[] commands = new String[DISTINCT_MESSAGES];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = protocol.buildTextMessage(sender, roomId, "message number " + i + " :)");
+        }
+        return commands;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Room {
+        @Param({"10", "100", "1000"})
+        public int members;
+
+        @Param({"persist", "persist-async"})
+        public String persistStage;
+
+        Datahandler datahandler;
+        MessagePipeline pipeline;
+        ServerHandler sender;
+        String[] commands;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            UUID lobby = lobbyId();
+            datahandler = new Datahandler();
+            datahandler.setRetentionPolicy(lobby, new RetentionPolicy(RETAINED_MESSAGES, 0, 0));
+            System.setProperty("chat.pipeline", "parse,validate,emoji," + persistStage + ",fanout");
+            pipeline = MessagePipeline.fromConfig(datahandler);
+            LoginService loginService = new LoginService(new UserHandler());
+            for (int i = 0; i < members; i++) {
+                ServerHandler member = connect("member" + i, loginService, datahandler, pipeline);
+                member.handleClientMessage("JOIN_ROOM::" + lobby);
+                if (sender == null) sender = member;
+            }
+            commands = sendCommands("member0", lobby);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pipeline.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class History {
+        @Param({"100", "10000"})
+        public int messages;
+
+        Datahandler datahandler;
+        ServerHandler joiner;
+        UUID lobby;
+        MessageModel[] newMessages;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            lobby = lobbyId();
+            datahandler = new Datahandler();
+            datahandler.setRetentionPolicy(lobby, new RetentionPolicy(Math.max(messages, RETAINED_MESSAGES), 0, 0));
+            MessageProtocol protocol = new MessageProtocol();
+            for (int i = 0; i < messages; i++) {
+                datahandler.addMessageToArray(protocol.createTextMessage("author" + (i % 20), lobby, "older message " + i));
+            }
+            newMessages = new MessageModel[DISTINCT_MESSAGES];
+            for (int i = 0; i < newMessages.length; i++) {
+                newMessages[i] = protocol.createTextMessage("author", lobby, "new message " + i);
+            }
+            System.setProperty("chat.pipeline", MessagePipeline.DEFAULT_STAGES);
+            joiner = connect("joiner", new LoginService(new UserHandler()), datahandler, MessagePipeline.fromConfig(datahandler));
+        }
+    }
+
+    @Benchmark
+    public void sendMessageToRoom(Room room) {
+        room.sender.handleClientMessage(room.commands[room.next++ & (DISTINCT_MESSAGES - 1)]);
+    }
+
+    // The room has not changed since the last join, so the history block comes from the cache.
+    @Benchmark
+    public void joinRoomCachedHistory(History history) {
+        history.joiner.handleClientMessage("JOIN_ROOM::" + history.lobby);
+    }
+
+    // A message arrived since the last join, so the history block is rebuilt.
+    @Benchmark
+    public void joinRoomAfterNewMessage(History history) {
+        history.datahandler.addMessageToArray(history.newMessages[history.next++ & (DISTINCT_MESSAGES - 1)]);
+        history.joiner.handleClientMessage("JOIN_ROOM::" + history.lobby);
+    }
+}
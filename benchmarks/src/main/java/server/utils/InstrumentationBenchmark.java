@@ -0,0 +1,73 @@
+package server.utils;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The per-command overhead the server pays on every request: the rate-limit check and the metrics
+// it records. The limits are set high enough that nothing is throttled.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.limit.SEND_MSG=1000000000/1000000000", "-Dchat.limit.room.SEND_MSG=1000000000/1000000000"})
+public class InstrumentationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final RateLimiter limiter = RateLimiter.fromConfig();
+        final UUID roomId = UUID.randomUUID();
+        final Metrics.Counter counter = Metrics.counter("benchmark.counter");
+        final LatencyHistogram histogram = Metrics.timer("benchmark.timer");
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        TokenBucket[] buckets;
+
+        @Setup
+        public void setup(Shared shared) {
+            buckets = shared.limiter.newSessionBuckets();
+        }
+    }
+
+    @Benchmark
+    public long rateLimitCheck(Shared shared, Session session) {
+        return shared.limiter.tryAcquire(session.buckets, RateLimiter.SEND_MSG, shared.roomId);
+    }
+
+    // Every thread shares the room bucket, as senders in one busy room do.
+    @Benchmark
+    @Threads(4)
+    public long rateLimitCheckSharedRoom(Shared shared, Session session) {
+        return shared.limiter.tryAcquire(session.buckets, RateLimiter.SEND_MSG, shared.roomId);
+    }
+
+    @Benchmark
+    public void counterIncrement(Shared shared) {
+        shared.counter.increment();
+    }
+
+    @Benchmark
+    public void histogramRecord(Shared shared) {
+        shared.histogram.record(ThreadLocalRandom.current().nextLong(100, 1_000_000));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramRecordContended(Shared shared) {
+        shared.histogram.record(ThreadLocalRandom.current().nextLong(100, 1_000_000));
+    }
+}
@@ -1,5 +1,6 @@
 package Services;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -20,19 +21,27 @@ public class ChatroomManager {
         // A temporary system user is created to be the owner of the default rooms.
         UUID systemId = UUID.randomUUID();
         
-        ChatRoom lobby = new ChatRoom("Lobby", systemId);
+        ChatRoom lobby = new ChatRoom(defaultRoomId("Lobby"), "Lobby", systemId);
         chatrooms.put(lobby.getId(), lobby);
         System.out.println("Chatroom created: Lobby with ID " + lobby.getId());
 
-        ChatRoom general = new ChatRoom("General", systemId);
+        ChatRoom general = new ChatRoom(defaultRoomId("General"), "General", systemId);
         chatrooms.put(general.getId(), general);
         System.out.println("Chatroom created: General with ID " + general.getId());
     }
 
+    // Default rooms get a name-based ID so stored history still belongs to them after a restart.
+    private static UUID defaultRoomId(String roomName) {
+        return UUID.nameUUIDFromBytes(("chatroom:" + roomName).getBytes(StandardCharsets.UTF_8));
+    }
+
     // Retrieves a single chat room by its unique ID.
     public static ChatRoom getChatroomById(UUID id) {
-        Logger.warning(LogEvent.CHAT_MESSAGE, "Requested chatroom not found for ID: " + id);
-        return chatrooms.get(id);
+        ChatRoom room = chatrooms.get(id);
+        if (room == null) {
+            Logger.warning(LogEvent.CHAT_MESSAGE, "Requested chatroom not found for ID: {}", id);
+        }
+        return room;
     }
 
     // Creates a new chat room and adds it to the central map.
@@ -1,30 +1,59 @@
 package Services;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
+import common.models.ChatRoom;
+import common.models.MessageModel;
+import common.protocols.BinaryCodec;
+import common.protocols.ModifiedUtf8;
+import server.utils.LatencyHistogram;
 import server.utils.Logger;
 import server.utils.Logger.LogEvent;
+import server.utils.Metrics;
 
 // This class acts as a central registry for all connected clients.
 // It allows any part of the server to send messages without needing direct access to socket objects.
 public class ClientManager {
-    // A thread-safe map that stores client sessions, mapping a unique session ID to a client's socket.
-    private static final Map<UUID, Socket> clients = new ConcurrentHashMap<>();
+    // A thread-safe map that stores client sessions, mapping a unique session ID to the client's session handle.
+    private static final Map<UUID, ClientSession> clients = new ConcurrentHashMap<>();
+    // Frames handed to session writers, and how many recipients each broadcast or multicast reached.
+    private static final Metrics.Counter messagesOut = Metrics.counter("messages.out");
+    private static final LatencyHistogram fanOutSize = Metrics.histogram("messages.fanout");
+
+    static {
+        Metrics.gauge("sessions.connected", clients::size);
+        // Outbound queues are only summed when a snapshot is taken, so sending stays untouched.
+        Metrics.gauge("outbound.queued", () -> {
+            long total = 0;
+            for (ClientSession session : clients.values()) total += session.getQueueDepth();
+            return total;
+        });
+        Metrics.gauge("outbound.maxDepth", () -> {
+            long max = 0;
+            for (ClientSession session : clients.values()) max = Math.max(max, session.getQueueDepth());
+            return max;
+        });
+        Metrics.gauge("outbound.dropped", () -> {
+            long total = 0;
+            for (ClientSession session : clients.values()) total += session.getDroppedCount();
+            return total;
+        });
+    }
 
     // Registers a new client when they connect.
-    public static void addClient(UUID clientId, Socket socket) {
-        clients.put(clientId, socket);
-        Logger.info(LogEvent.USER_SESSION, "New client added: " + clientId + " from " + socket.getRemoteSocketAddress());
+    public static void addClient(ClientSession session) {
+        clients.put(session.getId(), session);
+        Logger.info(LogEvent.USER_SESSION, "New client added: " + session.getId() + " from " + session.getRemoteAddress());
     }
 
     // Removes a client when they disconnect.
     public static void removeClient(UUID clientId) {
-        Socket removed = clients.remove(clientId);
+        ClientSession removed = clients.remove(clientId);
         if (removed != null) {
             Logger.info(LogEvent.USER_SESSION, "Client removed: " + clientId);
         } else {
@@ -32,37 +61,128 @@ public class ClientManager {
         }
     }
 
-    // Retrieves a client's socket using their session ID.
-    public static Socket getClientSocket(UUID clientId) {
+    // Retrieves a client's session using their session ID.
+    public static ClientSession getClientSession(UUID clientId) {
         return clients.get(clientId);
     }
 
+    // A read-only view of all sessions, e.g. for inspecting per-client queue depth and drop counts.
+    public static Collection<ClientSession> getSessions() {
+        return Collections.unmodifiableCollection(clients.values());
+    }
+
     // Sends a message to every connected client.
+    // The frame is encoded once and the same bytes are queued for every session.
     public static void broadcastMessage(String message) {
-        for (Map.Entry<UUID, Socket> entry : clients.entrySet()) {
-            UUID clientId = entry.getKey();
-            Socket socket = entry.getValue();
-            try {
-                new DataOutputStream(socket.getOutputStream()).writeUTF(message);
-                Logger.info(LogEvent.CHAT_MESSAGE, "Broadcast message sent to client " + clientId);
-            } catch (IOException e) {
-                Logger.error(LogEvent.CHAT_MESSAGE, "Broadcast failed for client " + clientId, e);
+        EncodedMessage encoded = new EncodedMessage(message);
+        int delivered = 0;
+        for (Map.Entry<UUID, ClientSession> entry : clients.entrySet()) {
+            if (deliver(entry.getKey(), entry.getValue(), encoded)) delivered++;
+        }
+        fanOutSize.record(delivered);
+        if (Logger.isEnabled(Logger.Level.DEBUG, LogEvent.CHAT_MESSAGE)) {
+            Logger.debug(LogEvent.CHAT_MESSAGE, "Broadcast message sent to {} clients", delivered);
+        }
+    }
+
+    // Sends one message to a group of clients (e.g. the members of a room), encoding it only once.
+    public static void multicastMessage(Collection<UUID> clientIds, String message) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        int delivered = 0;
+        for (UUID clientId : clientIds) {
+            if (deliver(clientId, clients.get(clientId), encoded)) delivered++;
+        }
+        fanOutSize.record(delivered);
+        if (Logger.isEnabled(Logger.Level.DEBUG, LogEvent.CHAT_MESSAGE)) {
+            Logger.debug(LogEvent.CHAT_MESSAGE, "Multicast message sent to {} of {} clients", delivered, clientIds.size());
+        }
+    }
+
+    // Sends one message to the members of a room, optionally skipping one user.
+    // Walks the room's membership snapshot directly: no per-member allocation and no session lookup.
+    public static void multicastMessage(ChatRoom.Member[] members, UUID excludedUserId, String message) {
+        multicast(members, excludedUserId, new EncodedMessage(message));
+    }
+
+    // Sends a chat message to the members of a room. Legacy clients get 'line'; binary clients get
+    // a CHAT_MESSAGE frame carrying the message itself.
+    public static void multicastChatMessage(ChatRoom.Member[] members, MessageModel message, String roomName, String line) {
+        multicast(members, null, new EncodedMessage(line, message, roomName));
+    }
+
+    private static void multicast(ChatRoom.Member[] members, UUID excludedUserId, EncodedMessage encoded) {
+        int delivered = 0;
+        for (ChatRoom.Member member : members) {
+            // Members without a session (e.g. a room's creator) have nowhere to receive messages.
+            if (member.session == null || member.userId.equals(excludedUserId)) continue;
+            if (deliver(member.session.getId(), member.session, encoded)) delivered++;
+        }
+        fanOutSize.record(delivered);
+        if (Logger.isEnabled(Logger.Level.DEBUG, LogEvent.CHAT_MESSAGE)) {
+            Logger.debug(LogEvent.CHAT_MESSAGE, "Multicast message sent to {} of {} room members", delivered, members.length);
+        }
+    }
+
+    // Holds one message encoded at most once per protocol version, since a room can mix
+    // legacy text clients and binary clients.
+    private static final class EncodedMessage {
+        private final String message;
+        // Set for chat messages, which binary clients receive as CHAT_MESSAGE frames.
+        private final MessageModel chatMessage;
+        private final String roomName;
+        private byte[] legacyFrame;
+        private byte[] binaryFrame;
+
+        EncodedMessage(String message) {
+            this(message, null, null);
+        }
+
+        EncodedMessage(String message, MessageModel chatMessage, String roomName) {
+            this.message = message;
+            this.chatMessage = chatMessage;
+            this.roomName = roomName;
+        }
+
+        byte[] frameFor(int protocolVersion) throws IOException {
+            if (protocolVersion >= BinaryCodec.VERSION) {
+                if (binaryFrame == null) {
+                    binaryFrame = chatMessage != null ? BinaryCodec.encodeChatMessage(chatMessage, roomName) : BinaryCodec.encodeText(message);
+                }
+                return binaryFrame;
             }
+            if (legacyFrame == null) legacyFrame = ModifiedUtf8.encodeFrame(message);
+            return legacyFrame;
+        }
+    }
+
+    private static boolean deliver(UUID clientId, ClientSession session, EncodedMessage encoded) {
+        if (session == null || !session.isOpen()) {
+            Logger.warning(LogEvent.CHAT_MESSAGE, "Recipient client not found or connection closed: {}", clientId);
+            return false;
+        }
+        try {
+            session.sendEncoded(encoded::frameFor);
+            messagesOut.increment();
+            return true;
+        } catch (IOException e) {
+            Logger.error(LogEvent.CHAT_MESSAGE, "Delivery failed for client " + clientId, e);
+            return false;
         }
     }
 
     // Sends a message to a single, specific client.
     public static void unibroadcastMessage(UUID clientId, String message) {
-        Socket socket = clients.get(clientId);
-        if (socket != null && !socket.isClosed()) {
+        ClientSession session = clients.get(clientId);
+        if (session != null && session.isOpen()) {
             try {
-                new DataOutputStream(socket.getOutputStream()).writeUTF(message);
-                Logger.info(LogEvent.CHAT_MESSAGE, "Unicast message sent to client " + clientId);
+                session.send(message);
+                messagesOut.increment();
+                Logger.debug(LogEvent.CHAT_MESSAGE, "Unicast message sent to client {}", clientId);
             } catch (IOException e) {
                 Logger.error(LogEvent.CHAT_MESSAGE, "Unicast failed for client " + clientId, e);
             }
         } else {
-            Logger.warning(LogEvent.CHAT_MESSAGE, "Recipient client not found or connection closed: " + clientId);
+            Logger.warning(LogEvent.CHAT_MESSAGE, "Recipient client not found or connection closed: {}", clientId);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package Services;
+
+import java.io.IOException;
+import java.util.UUID;
+
+// A transport-neutral handle to one connected client's control channel.
+// The rest of the server talks to clients through this interface, so the same
+// command handlers work whether the connection is served by a blocking thread
+// or by a non-blocking event loop.
+public interface ClientSession {
+
+    // The unique session ID assigned when the client connected.
+    UUID getId();
+
+    // Queues a single protocol message for the session's writer. Never blocks on the network.
+    void send(String message) throws IOException;
+
+    // Queues an already encoded frame in this session's protocol version. The array may be
+    // shared by many sessions during a fan-out, so nobody may modify it afterwards.
+    void sendFrame(byte[] frame) throws IOException;
+
+    // Queues a frame encoded for the protocol version the session speaks at that moment.
+    // The version cannot change between encoding and queueing, so a message sent by another
+    // thread while the client says HELLO always arrives in the format the client expects.
+    void sendEncoded(FrameEncoder encoder) throws IOException;
+
+    // 1 for the legacy writeUTF text protocol, 2 once the client negotiated binary frames.
+    int getProtocolVersion();
+
+    // Queues the HELLO reply in the current version and switches to 'version' for everything
+    // queued after it, as one step.
+    void switchProtocol(String reply, int version) throws IOException;
+
+    // Terminates the connection. Calling it more than once has no effect.
+    void close();
+
+    boolean isOpen();
+
+    String getRemoteAddress();
+
+    // Number of frames waiting in the outbound queue.
+    int getQueueDepth();
+
+    // Number of frames discarded by the overflow policy since the session started.
+    long getDroppedCount();
+
+    // Encodes one message for the given protocol version.
+    interface FrameEncoder {
+        byte[] encode(int protocolVersion) throws IOException;
+    }
+}
@@ -1,54 +1,243 @@
 package Services;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import server.utils.LatencyHistogram;
 import server.utils.Logger;
 import server.utils.Logger.LogEvent;
+import server.utils.Metrics;
+import server.utils.ServerConfig;
 
 // Handles the logistics of pairing two clients for a direct file transfer.
 public class DataTransferManager {
     // A temporary holding area for clients who have connected to the data port
     // and are waiting for their counterpart. Maps a transfer ID to the first client's socket.
-    private static final Map<UUID, Socket> pendingTransfers = new ConcurrentHashMap<>();
+    private static final Map<UUID, PendingConnection> pendingTransfers = new ConcurrentHashMap<>();
     // Stores the expected file size for each transfer, crucial for knowing when to stop reading.
-    private static final Map<UUID, Long> transferSizes = new ConcurrentHashMap<>();
+    private static final Map<UUID, ExpectedTransfer> transferSizes = new ConcurrentHashMap<>();
+    // How long a half-paired socket or an accepted-but-unused transfer may linger before being reaped.
+    private static final long PENDING_TIMEOUT_MILLIS = ServerConfig.getLong("chat.transfer.pendingTimeoutMs", 60_000);
+    // Supplies the relay threads, so relays follow the server's execution mode (platform or virtual).
+    private static volatile ThreadExecutorService threadExecutor;
+    // Large direct buffers shared by all relays; sized with -Dchat.relay.bufferKb (default 256).
+    private static final DirectBufferPool BUFFER_POOL =
+            new DirectBufferPool(ServerConfig.getInt("chat.relay.bufferKb", 256) * 1024, ServerConfig.getInt("chat.relay.pooledBuffers", 64));
+    // A relay that moves no data for this long is failed and its sockets closed (-Dchat.relay.idleTimeoutMs, 0 = never).
+    static final long RELAY_IDLE_TIMEOUT_MILLIS = Math.max(0, ServerConfig.getLong("chat.relay.idleTimeoutMs", 60_000));
+    private static final boolean USE_CHANNEL_RELAY = !"stream".equalsIgnoreCase(ServerConfig.getString("chat.relay.mode", "channel"));
+
+    // Channel relays are multiplexed over a fixed set of event loops instead of one thread each.
+    private static final int MAX_CONCURRENT_RELAYS = Math.max(1, ServerConfig.getInt("chat.relay.maxConcurrent", 1024));
+    private static final AtomicInteger activeRelays = new AtomicInteger();
+    // Pairs waiting for a free relay slot, started in arrival order.
+    private static final Queue<QueuedRelay> queuedRelays = new ConcurrentLinkedQueue<>();
+    private static RelayEventLoop[] relayLoops;
+    private static final AtomicInteger nextRelayLoop = new AtomicInteger();
+
+    private static final Metrics.Counter relayedBytes = Metrics.counter("relay.bytes");
+    private static final Metrics.Counter completedRelays = Metrics.counter("relay.completed");
+    static final Metrics.Counter failedRelays = Metrics.counter("relay.failed");
+    // Per-transfer throughput in KB/s; the rate of relay.bytes is the aggregate.
+    private static final LatencyHistogram relayThroughput = Metrics.histogram("relay.throughputKBps");
+
+    static {
+        Metrics.gauge("relay.active", activeRelays::get);
+        Metrics.gauge("relay.queued", queuedRelays::size);
+        Metrics.gauge("transfers.awaitingPeer", pendingTransfers::size);
+    }
+
+    // The first party's socket, remembered with its arrival time so it can be reaped.
+    private static final class PendingConnection {
+        final Socket socket;
+        final long arrivedAt = System.currentTimeMillis();
+
+        PendingConnection(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private static final class ExpectedTransfer {
+        final long fileSize;
+        final long registeredAt = System.currentTimeMillis();
+
+        ExpectedTransfer(long fileSize) {
+            this.fileSize = fileSize;
+        }
+    }
+
+    // A paired transfer waiting for a relay slot.
+    private static final class QueuedRelay {
+        final UUID transferId;
+        final SocketChannel sender;
+        final SocketChannel receiver;
+        final long fileSize;
+
+        QueuedRelay(UUID transferId, SocketChannel sender, SocketChannel receiver, long fileSize) {
+            this.transferId = transferId;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.fileSize = fileSize;
+        }
+    }
+
+    // Called once at start-up by the Server.
+    public static void setThreadExecutor(ThreadExecutorService executor) {
+        threadExecutor = executor;
+    }
 
     // This method is called by the Server's data port listener thread.
     // It acts as a rendezvous point for the sender and receiver.
     public static void handleNewDataConnection(UUID transferId, Socket socket) {
-        if (pendingTransfers.containsKey(transferId)) {
+        // Pairing is a single atomic step, so two parties arriving at once cannot both wait.
+        PendingConnection[] counterpart = new PendingConnection[1];
+        pendingTransfers.compute(transferId, (id, waiting) -> {
+            if (waiting == null) return new PendingConnection(socket);
+            counterpart[0] = waiting;
+            return null;
+        });
+
+        if (counterpart[0] != null) {
             // The second party has arrived. Let's start the transfer.
-            Socket firstPartySocket = pendingTransfers.remove(transferId);
-            long fileSize = transferSizes.remove(transferId);
+            Socket firstPartySocket = counterpart[0].socket;
+            ExpectedTransfer expected = transferSizes.remove(transferId);
+            if (expected == null) {
+                Logger.warning(LogEvent.FILE_TRANSFER, "No registered size for transfer " + transferId + ". Closing both data connections.");
+                closeQuietly(firstPartySocket);
+                closeQuietly(socket);
+                return;
+            }
+            long fileSize = expected.fileSize;
 
             Logger.info(LogEvent.FILE_TRANSFER, "Pair found for transfer " + transferId + ". Starting relay.");
-            // The relay runs in a new thread to avoid blocking the data port listener.
-            new Thread(() -> relayFileStream(firstPartySocket, socket, fileSize, transferId)).start();
+            SocketChannel senderChannel = firstPartySocket.getChannel();
+            SocketChannel receiverChannel = socket.getChannel();
+            if (USE_CHANNEL_RELAY && senderChannel != null && receiverChannel != null) {
+                queuedRelays.add(new QueuedRelay(transferId, senderChannel, receiverChannel, fileSize));
+                dispatchQueuedRelays();
+                return;
+            }
+            // Stream relays run in their own thread to avoid blocking the data port listener.
+            Runnable relay = () -> relayFileStream(firstPartySocket, socket, fileSize, transferId);
+            ThreadExecutorService executor = threadExecutor;
+            if (executor != null) {
+                executor.startThread("relay-" + transferId, relay);
+            } else {
+                new Thread(relay, "relay-" + transferId).start();
+            }
         } else {
-            // This is the first party to connect. We'll store their socket and wait.
-            pendingTransfers.put(transferId, socket);
+            // This is the first party to connect. Their socket was stored above; now we wait.
             Logger.info(LogEvent.FILE_TRANSFER, "First party arrived for transfer " + transferId + ". Waiting for counterpart.");
         }
     }
 
+    // Number of relays currently being served by the relay loops.
+    public static int getActiveRelayCount() {
+        return activeRelays.get();
+    }
+
+    // Number of paired transfers waiting because the concurrent relay cap was reached.
+    public static int getQueuedRelayCount() {
+        return queuedRelays.size();
+    }
+
+    // Called by a relay loop whenever a transfer ends, freeing its slot for a queued one.
+    static void onRelayFinished() {
+        activeRelays.decrementAndGet();
+        dispatchQueuedRelays();
+    }
+
+    // Starts queued relays while there are free slots under -Dchat.relay.maxConcurrent.
+    // A slot is claimed optimistically and handed back when it cannot be used. Another caller may
+    // have given up in the meantime because of that claim, so after handing it back the queue is
+    // checked again; otherwise a queued relay could wait with a slot free and nobody to start it.
+    private static void dispatchQueuedRelays() {
+        while (!queuedRelays.isEmpty()) {
+            if (activeRelays.incrementAndGet() > MAX_CONCURRENT_RELAYS) {
+                if (activeRelays.decrementAndGet() < MAX_CONCURRENT_RELAYS) continue;
+                Logger.info(LogEvent.FILE_TRANSFER, "Relay limit reached (" + MAX_CONCURRENT_RELAYS + "). " + queuedRelays.size() + " transfer(s) queued.");
+                return;
+            }
+            QueuedRelay relay = queuedRelays.poll();
+            if (relay == null) {
+                activeRelays.decrementAndGet();
+                continue;
+            }
+            RelayEventLoop[] loops = getRelayLoops();
+            RelayEventLoop loop = loops[Math.floorMod(nextRelayLoop.getAndIncrement(), loops.length)];
+            loop.submit(relay.transferId, relay.sender, relay.receiver, relay.fileSize);
+        }
+    }
+
+    // The loops are created on first use; -Dchat.relay.loops sets how many.
+    private static synchronized RelayEventLoop[] getRelayLoops() {
+        if (relayLoops == null) {
+            int count = Math.max(1, ServerConfig.getInt("chat.relay.loops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+            RelayEventLoop[] loops = new RelayEventLoop[count];
+            try {
+                for (int i = 0; i < count; i++) {
+                    loops[i] = new RelayEventLoop("relay-loop-" + i, BUFFER_POOL);
+                    loops[i].start();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open relay event loops", e);
+            }
+            relayLoops = loops;
+        }
+        return relayLoops;
+    }
+
     // Called by the ServerHandler to log the file size before clients connect to the data port.
     public static void registerTransferSize(UUID transferId, long fileSize) {
-        transferSizes.put(transferId, fileSize);
+        transferSizes.put(transferId, new ExpectedTransfer(fileSize));
         Logger.info(LogEvent.FILE_TRANSFER, "Registered transfer size for " + transferId + ": " + fileSize + " bytes");
     }
+
+    // Lets the data port handshake reject IDs that were never accepted on the control port.
+    public static boolean isExpectedTransfer(UUID transferId) {
+        return transferSizes.containsKey(transferId);
+    }
+
+    public static int getPendingTransferCount() {
+        return pendingTransfers.size();
+    }
+
+    // Closes half-paired sockets whose counterpart never showed up and forgets stale registrations.
+    // Called periodically by the data port handshake loop.
+    public static void reapExpiredTransfers() {
+        long cutoff = System.currentTimeMillis() - PENDING_TIMEOUT_MILLIS;
+        pendingTransfers.entrySet().removeIf(entry -> {
+            if (entry.getValue().arrivedAt > cutoff) return false;
+            Logger.warning(LogEvent.FILE_TRANSFER, "Counterpart never arrived for transfer " + entry.getKey() + ". Closing data connection.");
+            closeQuietly(entry.getValue().socket);
+            return true;
+        });
+        transferSizes.entrySet().removeIf(entry -> entry.getValue().registeredAt <= cutoff && !pendingTransfers.containsKey(entry.getKey()));
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
     
-    // The core of the transfer logic. It pipes bytes from the sender to the receiver.
-    // The server itself never stores the file on disk.
+    // The thread-per-transfer relay, used for sockets without channels and for -Dchat.relay.mode=stream
+    // (handy for comparing against the multiplexed loops). The server itself never stores the file on disk.
     private static void relayFileStream(Socket senderSocket, Socket receiverSocket, long fileSize, UUID transferId) {
-        try (InputStream fromSender = senderSocket.getInputStream();
-             OutputStream toReceiver = receiverSocket.getOutputStream()) {
-
+        long startNanos = System.nanoTime();
+        try {
+            // A stalled sender fails the read instead of holding the thread forever.
+            senderSocket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, RELAY_IDLE_TIMEOUT_MILLIS));
+            InputStream fromSender = senderSocket.getInputStream();
+            OutputStream toReceiver = receiverSocket.getOutputStream();
             byte[] buffer = new byte[8192];
             int bytesRead;
             long totalBytesRelayed = 0;
@@ -60,9 +249,12 @@ public class DataTransferManager {
                 totalBytesRelayed += bytesRead;
             }
             toReceiver.flush();
-            Logger.info(LogEvent.FILE_TRANSFER, "Relay complete for transfer " + transferId + ": " + totalBytesRelayed + " bytes forwarded.");
-
+            if (totalBytesRelayed < fileSize) {
+                throw new EOFException("Sender disconnected after " + totalBytesRelayed + " of " + fileSize + " bytes");
+            }
+            logThroughput(transferId, "stream", totalBytesRelayed, System.nanoTime() - startNanos);
         } catch (IOException e) {
+            failedRelays.increment();
             Logger.error(LogEvent.FILE_TRANSFER, "Error during file relay for transfer " + transferId, e);
         } finally {
             try { senderSocket.close(); }
@@ -71,4 +263,14 @@ public class DataTransferManager {
             catch (IOException e) { Logger.warning(LogEvent.FILE_TRANSFER, "Failed to close receiver socket for transfer " + transferId + ": " + e.getMessage()); }
         }
     }
+
+    static void logThroughput(UUID transferId, String mode, long bytes, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        double megabytesPerSecond = bytes / (1024.0 * 1024.0) / seconds;
+        relayedBytes.add(bytes);
+        completedRelays.increment();
+        relayThroughput.record((long) (bytes / 1024.0 / seconds));
+        Logger.info(LogEvent.FILE_TRANSFER, String.format("Relay complete for transfer %s: %d bytes forwarded in %.1f ms (%.1f MB/s, %s relay).",
+                transferId, bytes, elapsedNanos / 1_000_000.0, megabytesPerSecond, mode));
+    }
 }
@@ -0,0 +1,46 @@
+package Services;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A small pool of large direct buffers for file relays.
+// Direct buffers let the kernel copy socket data without an extra trip through the Java heap,
+// but they are expensive to allocate, so they are recycled instead of created per transfer.
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    // Returns a cleared buffer, allocating a new one only when the pool is empty.
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooledCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Hands a buffer back. Buffers beyond the pool limit are left for the garbage collector.
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) return;
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -1,33 +1,46 @@
 package Services;
 
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import common.models.User;
 
 import server.utils.Logger;
 import server.utils.Logger.LogEvent;
 
 // This service handles user authentication, session management, and tracks active users.
+// Active logins are indexed both ways, by user ID and by session ID, in concurrent maps that
+// share one ActiveLogin per login. Both directions are O(1) and hand out the session itself,
+// so nothing has to be parsed on the delivery path.
+// Logins claim the user with putIfAbsent and logouts remove with remove(key, value), so two
+// threads can never both log in the same user or log out someone else's newer login.
 public class LoginService {
 
     private final UserHandler userHandler;
-    // Maps a user's unique ID to their User object for quick access.
-    private final Map<UUID, User> activeUsers;
-    // Maps a user's ID to their current client session ID.
-    private final Map<UUID, String> userSessions;
+    // Maps a user's unique ID to their login.
+    private final ConcurrentHashMap<UUID, ActiveLogin> loginsByUser = new ConcurrentHashMap<>();
+    // Maps a session ID to the login made on that connection.
+    private final ConcurrentHashMap<UUID, ActiveLogin> loginsBySession = new ConcurrentHashMap<>();
+
+    // One logged-in user and the session they logged in on.
+    public static final class ActiveLogin {
+        public final User user;
+        public final ClientSession session;
+
+        ActiveLogin(User user, ClientSession session) {
+            this.user = user;
+            this.session = session;
+        }
+    }
 
     public LoginService(UserHandler userHandler) {
         this.userHandler = userHandler;
-        this.activeUsers = new HashMap<>();
-        this.userSessions = new HashMap<>();
         Logger.info(LogEvent.USER_SESSION, "LoginService initialized");
     }
 
     // Attempts to log in a user. If the user doesn't exist, they are created automatically.
-    // Returns null if the user is already logged in elsewhere.
-    public User attemptLogin(String username, String clientId) {
+    // Returns null if the user is already logged in elsewhere or the session already has a login.
+    public User attemptLogin(String username, ClientSession session) {
         User user = userHandler.getOrCreateUser(username);
 
         if (user == null) {
@@ -35,29 +48,34 @@ public class LoginService {
             return null; 
         }
 
-        if (activeUsers.containsKey(user.getId())) {
+        ActiveLogin login = new ActiveLogin(user, session);
+        if (loginsByUser.putIfAbsent(user.getId(), login) != null) {
             Logger.warning(LogEvent.USER_SESSION, "Login failed. User already logged in: " + username);
             return null;
         }
-
-        activeUsers.put(user.getId(), user);
-        userSessions.put(user.getId(), clientId);
-        Logger.info(LogEvent.USER_SESSION, "Login success: " + username + " with clientId: " + clientId);
+        if (loginsBySession.putIfAbsent(session.getId(), login) != null) {
+            loginsByUser.remove(user.getId(), login);
+            Logger.warning(LogEvent.USER_SESSION, "Login failed. Client {} is already logged in as another user", session.getId());
+            return null;
+        }
+        Logger.info(LogEvent.USER_SESSION, "Login success: {} with clientId: {}", username, session.getId());
         return user;
     }
 
     // Parses a raw login message string and calls the main login logic.
-    // Expected format: "clientId|timestamp|LOGIN|username"
-    public User parseAndValidateLogin(String loginMessage) {
+    // Expected format: "clientId|timestamp|LOGIN|username", where clientId is the given session's ID.
+    public User parseAndValidateLogin(String loginMessage, ClientSession session) {
         try {
             String[] parts = loginMessage.split("\\|");
             if (parts.length < 4 || !"LOGIN".equals(parts[2]) || !isValidTimestamp(parts[1])) {
                 Logger.warning(LogEvent.USER_SESSION, "Invalid login message format: " + loginMessage);
                 return null;
             }
-            String clientId = parts[0];
-            String username = parts[3];
-            return attemptLogin(username, clientId);
+            if (!session.getId().toString().equals(parts[0])) {
+                Logger.warning(LogEvent.USER_SESSION, "Login message for another client: " + loginMessage);
+                return null;
+            }
+            return attemptLogin(parts[3], session);
         } catch (Exception e) {
             Logger.error(LogEvent.USER_SESSION, "Error parsing login message: " + loginMessage, e);
             return null;
@@ -66,30 +84,25 @@ public class LoginService {
 
     // Logs a user out based on their permanent user ID.
     public boolean logout(UUID userId) {
-        User user = activeUsers.remove(userId);
-        userSessions.remove(userId);
-        if (user != null) {
-            Logger.info(LogEvent.USER_SESSION, "Logout success: " + user.getUserName() + " is now offline");
+        ActiveLogin login = loginsByUser.remove(userId);
+        if (login != null) {
+            loginsBySession.remove(login.session.getId(), login);
+            Logger.info(LogEvent.USER_SESSION, "Logout success: {} is now offline", login.user.getUserName());
             return true;
-        } else {
-            Logger.warning(LogEvent.USER_SESSION, "Logout attempted for unknown user ID: " + userId);
         }
+        Logger.warning(LogEvent.USER_SESSION, "Logout attempted for unknown user ID: {}", userId);
         return false;
     }
 
-    // A convenience method to log a user out using their temporary session ID.
-    public boolean logoutByClientId(String clientId) {
-        UUID userIdToLogout = null;
-        for (Map.Entry<UUID, String> entry : userSessions.entrySet()) {
-            if (clientId.equals(entry.getValue())) {
-                userIdToLogout = entry.getKey();
-                break;
-            }
-        }
-        if (userIdToLogout != null) {
-            return logout(userIdToLogout);
+    // Logs out whoever is logged in on the given session. O(1).
+    public boolean logoutBySession(UUID sessionId) {
+        ActiveLogin login = loginsBySession.remove(sessionId);
+        if (login != null) {
+            loginsByUser.remove(login.user.getId(), login);
+            Logger.info(LogEvent.USER_SESSION, "Logout success: {} is now offline", login.user.getUserName());
+            return true;
         }
-        Logger.warning(LogEvent.USER_SESSION, "Logout attempted with unknown clientId: " + clientId);
+        Logger.warning(LogEvent.USER_SESSION, "Logout attempted with unknown clientId: {}", sessionId);
         return false;
     }
     
@@ -100,12 +113,23 @@ public class LoginService {
     
     // Checks if a user is currently logged in.
     public boolean isUserActive(UUID userId) {
-        return activeUsers.containsKey(userId);
+        return loginsByUser.containsKey(userId);
+    }
+
+    // Retrieves the session a user is logged in on, or null if they are offline.
+    public ClientSession getSession(UUID userId) {
+        ActiveLogin login = loginsByUser.get(userId);
+        return login != null ? login.session : null;
+    }
+
+    // Retrieves the user logged in on a session, or null if there is none.
+    public User getUserBySession(UUID sessionId) {
+        ActiveLogin login = loginsBySession.get(sessionId);
+        return login != null ? login.user : null;
     }
 
-    // Retrieves the current session ID for a given user.
-    public String getClientId(UUID userId) {
-        return userSessions.get(userId);
+    public int getActiveUserCount() {
+        return loginsByUser.size();
     }
 
     private boolean isValidTimestamp(String timestamp) {
@@ -0,0 +1,92 @@
+package Services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.utils.ServerConfig;
+
+// A bounded queue of encoded frames waiting to be written to one client.
+// Producers (any handler thread) only enqueue; a single writer per session drains it,
+// so a slow reader can no longer stall the thread that is broadcasting to it.
+public class OutboundQueue {
+
+    // What to do when the queue is full.
+    public enum OverflowPolicy {
+        DROP_OLDEST,   // Discard the oldest queued frame to make room.
+        DROP_NEWEST,   // Discard the frame being offered.
+        DISCONNECT     // Treat the client as a slow consumer and drop the connection.
+    }
+
+    private final BlockingQueue<byte[]> frames;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.frames = new ArrayBlockingQueue<>(capacity);
+    }
+
+    // Builds a queue from -Dchat.outbound.capacity and -Dchat.outbound.policy.
+    public static OutboundQueue fromConfig() {
+        int capacity = Math.max(1, ServerConfig.getInt("chat.outbound.capacity", 8192));
+        OverflowPolicy policy;
+        try {
+            policy = OverflowPolicy.valueOf(ServerConfig.getString("chat.outbound.policy", "DISCONNECT").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            policy = OverflowPolicy.DISCONNECT;
+        }
+        return new OutboundQueue(capacity, policy);
+    }
+
+    // Enqueues a frame. Returns false only when the DISCONNECT policy was triggered.
+    public boolean offer(byte[] frame) {
+        if (frames.offer(frame)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_NEWEST:
+                droppedCount.incrementAndGet();
+                return true;
+            case DROP_OLDEST:
+                while (!frames.offer(frame)) {
+                    if (frames.poll() != null) droppedCount.incrementAndGet();
+                }
+                return true;
+            default:
+                droppedCount.incrementAndGet();
+                return false;
+        }
+    }
+
+    public byte[] poll() {
+        return frames.poll();
+    }
+
+    // Blocks until a frame is available. Used by dedicated writer threads.
+    public byte[] take() throws InterruptedException {
+        return frames.take();
+    }
+
+    public void clear() {
+        frames.clear();
+    }
+
+    public int depth() {
+        return frames.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,194 @@
+package Services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+
+// One selector thread that multiplexes many sender/receiver pairs.
+// Each readiness event moves at most one buffer's worth of data for a pair, so every
+// active transfer gets a turn per select round instead of one pair hogging the loop.
+public class RelayEventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final DirectBufferPool bufferPool;
+    private final Queue<RelayPair> incoming = new ConcurrentLinkedQueue<>();
+    // A pair that moves no bytes for this long is failed, freeing its slot and buffer; 0 never expires.
+    private final long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DataTransferManager.RELAY_IDLE_TIMEOUT_MILLIS);
+    private long nextIdleCheckNanos = System.nanoTime();
+
+    public RelayEventLoop(String name, DirectBufferPool bufferPool) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.bufferPool = bufferPool;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Hands a newly paired transfer to this loop.
+    public void submit(UUID transferId, SocketChannel sender, SocketChannel receiver, long fileSize) {
+        incoming.add(new RelayPair(transferId, sender, receiver, fileSize));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Logger.info(LogEvent.SERVER_LIFECYCLE, "Relay loop " + name + " started");
+        while (true) {
+            try {
+                if (idleTimeoutNanos > 0) {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(idleTimeoutNanos, TimeUnit.SECONDS.toNanos(1)))));
+                } else {
+                    selector.select();
+                }
+                registerIncoming();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    RelayPair pair = (RelayPair) key.attachment();
+                    if (!key.isValid() || pair.finished) continue;
+                    try {
+                        if (key == pair.senderKey && key.isReadable()) {
+                            pair.read();
+                            pair.write(); // Opportunistic write saves a select round when the receiver is keeping up.
+                        } else if (key == pair.receiverKey && key.isWritable()) {
+                            pair.write();
+                        }
+                        if (pair.isComplete()) finish(pair, null);
+                        else pair.updateInterest();
+                    } catch (IOException e) {
+                        finish(pair, e);
+                    }
+                }
+                if (idleTimeoutNanos > 0) expireIdlePairs();
+            } catch (IOException e) {
+                Logger.error(LogEvent.SYSTEM_ERROR, "Selector failure in " + name, e);
+            }
+        }
+    }
+
+    // Fails the pairs that have not moved a byte within the idle timeout. Runs about once a second.
+    private void expireIdlePairs() {
+        long now = System.nanoTime();
+        if (now - nextIdleCheckNanos < 0) return;
+        nextIdleCheckNanos = now + Math.min(idleTimeoutNanos, TimeUnit.SECONDS.toNanos(1));
+        for (SelectionKey key : selector.keys()) {
+            RelayPair pair = (RelayPair) key.attachment();
+            if (key != pair.senderKey || pair.finished || now - pair.lastProgressNanos < idleTimeoutNanos) continue;
+            finish(pair, new IOException("No data moved for " + TimeUnit.NANOSECONDS.toMillis(now - pair.lastProgressNanos)
+                    + " ms after " + pair.bytesWritten + " of " + pair.fileSize + " bytes"));
+        }
+    }
+
+    private void registerIncoming() {
+        RelayPair pair;
+        while ((pair = incoming.poll()) != null) {
+            try {
+                pair.buffer = bufferPool.acquire();
+                pair.sender.configureBlocking(false);
+                pair.receiver.configureBlocking(false);
+                pair.senderKey = pair.sender.register(selector, SelectionKey.OP_READ, pair);
+                pair.receiverKey = pair.receiver.register(selector, 0, pair);
+                Logger.info(LogEvent.FILE_TRANSFER, "Relay started for transfer " + pair.transferId + " on " + name + ". Forwarding " + pair.fileSize + " bytes.");
+                if (pair.isComplete()) finish(pair, null); // Zero-byte files.
+            } catch (IOException e) {
+                finish(pair, e);
+            }
+        }
+    }
+
+    private void finish(RelayPair pair, IOException error) {
+        if (pair.finished) return;
+        pair.finished = true;
+        if (error != null) {
+            DataTransferManager.failedRelays.increment();
+            Logger.error(LogEvent.FILE_TRANSFER, "Error during file relay for transfer " + pair.transferId, error);
+        } else {
+            DataTransferManager.logThroughput(pair.transferId, "multiplexed", pair.bytesWritten, System.nanoTime() - pair.startNanos);
+        }
+        if (pair.senderKey != null) pair.senderKey.cancel();
+        if (pair.receiverKey != null) pair.receiverKey.cancel();
+        try { pair.sender.close(); }
+        catch (IOException e) { Logger.warning(LogEvent.FILE_TRANSFER, "Failed to close sender socket for transfer " + pair.transferId + ": " + e.getMessage()); }
+        try { pair.receiver.close(); }
+        catch (IOException e) { Logger.warning(LogEvent.FILE_TRANSFER, "Failed to close receiver socket for transfer " + pair.transferId + ": " + e.getMessage()); }
+        bufferPool.release(pair.buffer);
+        pair.buffer = null;
+        DataTransferManager.onRelayFinished();
+    }
+
+    // State of one transfer. The buffer stays in "fill" mode between events:
+    // bytes [0, position) have been read from the sender but not yet written to the receiver.
+    private static final class RelayPair {
+        final UUID transferId;
+        final SocketChannel sender;
+        final SocketChannel receiver;
+        final long fileSize;
+        final long startNanos = System.nanoTime();
+        long lastProgressNanos = startNanos;
+        ByteBuffer buffer;
+        SelectionKey senderKey;
+        SelectionKey receiverKey;
+        long bytesRead;
+        long bytesWritten;
+        boolean finished;
+
+        RelayPair(UUID transferId, SocketChannel sender, SocketChannel receiver, long fileSize) {
+            this.transferId = transferId;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.fileSize = fileSize;
+        }
+
+        // Reads at most up to the registered file size, never past it. A sender that disconnects
+        // before the whole file has arrived fails the transfer.
+        void read() throws IOException {
+            long remaining = fileSize - bytesRead;
+            if (remaining <= 0 || !buffer.hasRemaining()) return;
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + remaining));
+            int n = sender.read(buffer);
+            buffer.limit(buffer.capacity());
+            if (n < 0) throw new EOFException("Sender disconnected after " + bytesRead + " of " + fileSize + " bytes");
+            if (n > 0) {
+                bytesRead += n;
+                lastProgressNanos = System.nanoTime();
+            }
+        }
+
+        void write() throws IOException {
+            if (buffer.position() == 0) return;
+            buffer.flip();
+            int n = receiver.write(buffer);
+            buffer.compact();
+            if (n > 0) {
+                bytesWritten += n;
+                lastProgressNanos = System.nanoTime();
+            }
+        }
+
+        boolean isComplete() {
+            return bytesWritten >= fileSize;
+        }
+
+        void updateInterest() {
+            boolean wantRead = bytesRead < fileSize && buffer.hasRemaining();
+            senderKey.interestOps(wantRead ? SelectionKey.OP_READ : 0);
+            receiverKey.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : 0);
+        }
+    }
+}
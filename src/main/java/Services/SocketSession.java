@@ -0,0 +1,156 @@
+package Services;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.protocols.BinaryCodec;
+import common.protocols.ModifiedUtf8;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+
+// A ClientSession backed by a classic blocking Socket, used by the thread-per-client engine.
+// Senders only enqueue; a dedicated writer thread owns the socket's output stream.
+public class SocketSession implements ClientSession {
+    // Supplies the writer threads, so they follow the server's execution mode (platform or virtual).
+    private static volatile ThreadExecutorService threadExecutor;
+
+    private final UUID id;
+    private final Socket socket;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean writerStarted = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Thread writer;
+    private volatile int protocolVersion = BinaryCodec.LEGACY_VERSION;
+    // Held while a frame is encoded and queued, and while HELLO switches the version.
+    private final ReentrantLock versionLock = new ReentrantLock();
+
+    public SocketSession(UUID id, Socket socket) {
+        this.id = id;
+        this.socket = socket;
+        this.outbound = OutboundQueue.fromConfig();
+    }
+
+    // Called once at start-up by the Server.
+    public static void setThreadExecutor(ThreadExecutorService executor) {
+        threadExecutor = executor;
+    }
+
+    @Override
+    public UUID getId() { return id; }
+
+    public Socket getSocket() { return socket; }
+
+    @Override
+    public void send(String message) throws IOException {
+        sendEncoded(version -> version >= BinaryCodec.VERSION ? BinaryCodec.encodeText(message) : ModifiedUtf8.encodeFrame(message));
+    }
+
+    @Override
+    public void sendEncoded(FrameEncoder encoder) throws IOException {
+        versionLock.lock();
+        try {
+            sendFrame(encoder.encode(protocolVersion));
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection closed for client " + id);
+        }
+        if (!outbound.offer(frame)) {
+            Logger.warning(LogEvent.USER_SESSION, "Disconnecting slow consumer " + id + ": outbound queue full (" + outbound.capacity() + " frames)");
+            close();
+            throw new IOException("Outbound queue overflow for client " + id);
+        }
+        if (writerStarted.compareAndSet(false, true)) {
+            startWriter();
+        }
+    }
+
+    private void startWriter() {
+        Runnable task = this::drainOutbound;
+        ThreadExecutorService executor = threadExecutor;
+        if (executor != null) {
+            writer = executor.startThread("writer-" + id, task);
+        } else {
+            Thread thread = new Thread(task, "writer-" + id);
+            writer = thread;
+            thread.start();
+        }
+    }
+
+    // The writer loop: block for one frame, then write everything else already queued
+    // before flushing, so bursts go out in as few socket writes as possible.
+    private void drainOutbound() {
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            while (!closed.get()) {
+                byte[] frame = outbound.take();
+                out.write(frame);
+                while ((frame = outbound.poll()) != null) {
+                    out.write(frame);
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // close() interrupts the writer; nothing left to do.
+        } catch (IOException e) {
+            System.err.println("Write to client " + id + " failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            outbound.clear();
+            try { socket.close(); } catch (IOException e) { /* Ignored */ }
+            Thread thread = writer;
+            if (thread != null) thread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && !socket.isClosed();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    @Override
+    public void switchProtocol(String reply, int version) throws IOException {
+        versionLock.lock();
+        try {
+            send(reply);
+            protocolVersion = version;
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.depth();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return outbound.droppedCount();
+    }
+}
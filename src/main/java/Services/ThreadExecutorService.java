@@ -1,33 +1,105 @@
 package Services;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import server.utils.Logger;
 import server.utils.Logger.LogEvent;
 
 // A wrapper for Java's ExecutorService to manage a pool of threads for background tasks.
 public class ThreadExecutorService {
-    private ExecutorService pool;
+
+    // How jobs and helper threads are executed.
+    // PLATFORM_POOL is the classic fixed pool; VIRTUAL gives every job its own virtual thread,
+    // so blocking per-session loops no longer compete for a handful of pool threads.
+    public enum ExecutionMode {
+        PLATFORM_POOL,
+        VIRTUAL
+    }
+
+    private final ExecutorService pool;
+    private final ExecutionMode mode;
+    // Only set in VIRTUAL mode; used for threads started outside the pool (e.g. file relays).
+    private final ThreadFactory virtualThreadFactory;
 
     public ThreadExecutorService(int poolSize) {
-        this.pool = Executors.newFixedThreadPool(poolSize);
-        Logger.info(LogEvent.SYSTEM_ERROR, "Thread pool created with " + poolSize + " threads");
+        this(poolSize, ExecutionMode.PLATFORM_POOL);
+    }
+
+    public ThreadExecutorService(int poolSize, ExecutionMode requestedMode) {
+        ThreadFactory factory = requestedMode == ExecutionMode.VIRTUAL ? createVirtualThreadFactory() : null;
+        if (factory != null) {
+            this.mode = ExecutionMode.VIRTUAL;
+            this.virtualThreadFactory = factory;
+            this.pool = createThreadPerTaskExecutor(factory);
+            Logger.info(LogEvent.SYSTEM_ERROR, "Executor created in virtual-thread-per-task mode");
+        } else {
+            this.mode = ExecutionMode.PLATFORM_POOL;
+            this.virtualThreadFactory = null;
+            this.pool = Executors.newFixedThreadPool(poolSize);
+            Logger.info(LogEvent.SYSTEM_ERROR, "Thread pool created with " + poolSize + " threads");
+        }
+    }
+
+    // Parses a mode name from configuration, falling back to the platform pool for unknown values.
+    public static ExecutionMode parseMode(String value) {
+        if (value != null && value.trim().equalsIgnoreCase("virtual")) {
+            return ExecutionMode.VIRTUAL;
+        }
+        return ExecutionMode.PLATFORM_POOL;
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
     }
 
     // Submits a new task to the thread pool's queue.
     public void addJob(Runnable job) {
         try {
             pool.submit(job);
-            Logger.info(LogEvent.SYSTEM_ERROR, "New job submitted to thread pool");
+            Logger.debug(LogEvent.SYSTEM_ERROR, "New job submitted to thread pool");
         } catch (Exception e) {
             Logger.error(LogEvent.SYSTEM_ERROR, "Error adding job to the pool", e);
         }
     }
 
+    // Starts a standalone thread for long-running work that should not occupy a pool slot.
+    // In VIRTUAL mode this is a virtual thread as well.
+    public Thread startThread(String name, Runnable task) {
+        Thread thread = virtualThreadFactory != null ? virtualThreadFactory.newThread(task) : new Thread(task);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
     // Initiates a graceful shutdown of the thread pool.
     public void shutdown() {
         pool.shutdown();
         Logger.info(LogEvent.SYSTEM_ERROR, "Thread pool is shutting down");
     }
+
+    // Virtual threads only exist on JDK 21+. They are looked up reflectively so the server
+    // still builds and runs on older JDKs, where the platform pool is used instead.
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            Logger.warning(LogEvent.SYSTEM_ERROR, "Virtual threads are not available on Java " + System.getProperty("java.version") + ". Falling back to the platform thread pool.");
+            return null;
+        }
+    }
+
+    // Executors.newThreadPerTaskExecutor is JDK 21+ too; only called once a virtual factory exists.
+    private static ExecutorService createThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread executor unavailable", e);
+        }
+    }
 }
@@ -1,108 +1,251 @@
 package Services;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import common.models.User;
+import server.storage.UserStore;
 import server.utils.Logger;
 import server.utils.Logger.LogEvent;
 
 // Manages the lifecycle of user accounts, such as creation and retrieval.
 // This acts as the central source of truth for all registered users, whether they are online or not.
+//
+// Users are indexed by name and by ID in two concurrent maps, so every lookup is O(1) and
+// lock-free. Changes (create, rename, remove) are serialized on one lock so both indexes and the
+// UserStore journal always change together and in the same order.
+// With a UserStore attached the directory survives restarts; it is loaded from the last snapshot
+// plus the changes logged since, and a background thread writes a new snapshot now and then.
 public class UserHandler {
-    private Map<String, User> registeredUsers; 
-    
+    private final ConcurrentHashMap<String, User> usersByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, User> usersById = new ConcurrentHashMap<>();
+    // Null when users are kept in memory only.
+    private final UserStore store;
+    // Serializes changes. They append to the UserStore journal (and may fsync) while holding it,
+    // so it is a ReentrantLock rather than 'synchronized' to keep virtual threads from pinning.
+    private final ReentrantLock lock = new ReentrantLock();
+
     public UserHandler() {
-        this.registeredUsers = new HashMap<>();
+        this.store = null;
         Logger.info(LogEvent.DATABASE, "UserHandler initialized");
     }
+
+    public UserHandler(UserStore store) {
+        UserStore loaded = store;
+        long started = System.currentTimeMillis();
+        try {
+            store.load(new UserStore.ReplayHandler() {
+                @Override
+                public void onCreate(UUID userId, String username) {
+                    index(new User(userId, username, ""));
+                }
+
+                @Override
+                public void onRename(UUID userId, String newUsername) {
+                    User user = usersById.get(userId);
+                    if (user == null) return;
+                    usersByName.remove(user.getUserName(), user);
+                    user.setUserName(newUsername);
+                    usersByName.put(newUsername, user);
+                }
+
+                @Override
+                public void onRemove(UUID userId) {
+                    User user = usersById.remove(userId);
+                    if (user != null) usersByName.remove(user.getUserName(), user);
+                }
+            });
+        } catch (IOException e) {
+            Logger.error(LogEvent.DATABASE, "Could not load the user store. Users will not be persisted.", e);
+            usersByName.clear();
+            usersById.clear();
+            loaded = null;
+        }
+        this.store = loaded;
+        Logger.info(LogEvent.DATABASE, "UserHandler initialized with {} user(s) in {} ms", usersById.size(), System.currentTimeMillis() - started);
+        if (this.store != null) startSnapshotter();
+    }
     
     // Creates a new user if the username is not already taken.
     public User createUser(String username) {
-        if (registeredUsers.containsKey(username)) {
-            Logger.warning(LogEvent.USER_SESSION, "Username already exists: " + username);
-            return null;
+        lock.lock();
+        try {
+            if (usersByName.containsKey(username)) {
+                Logger.warning(LogEvent.USER_SESSION, "Username already exists: " + username);
+                return null;
+            }
+
+            UUID userId = UUID.randomUUID();
+            User newUser = new User(userId, username, "");
+            index(newUser);
+            if (store != null) {
+                try {
+                    store.appendCreate(userId, username);
+                } catch (IOException e) {
+                    Logger.error(LogEvent.DATABASE, "Failed to persist user " + username, e);
+                }
+            }
+
+            Logger.info(LogEvent.USER_SESSION, "User created: " + username + " with ID: " + userId);
+            return newUser;
+        } finally {
+            lock.unlock();
         }
-        
-        UUID userId = UUID.randomUUID();
-        User newUser = new User(userId, username, "");
-        registeredUsers.put(username, newUser);
-        
-        Logger.info(LogEvent.USER_SESSION, "User created: " + username + " with ID: " + userId);
-        return newUser;
     }
     
     // Retrieves a user or creates them if they don't exist.
+    // Existing users are found without locking; creation is atomic, so two logins racing for a
+    // new name both get the same user.
     public User getOrCreateUser(String username) {
-        User user = registeredUsers.get(username);
-        if (user == null) {
-            Logger.info(LogEvent.USER_SESSION, "User not found, creating new user: " + username);
-            user = createUser(username);
-        } else {
-            Logger.info(LogEvent.USER_SESSION, "User retrieved: " + username + " with ID: " + user.getId());
+        User user = usersByName.get(username);
+        if (user != null) {
+            Logger.debug(LogEvent.USER_SESSION, "User retrieved: {} with ID: {}", username, user.getId());
+            return user;
+        }
+        lock.lock();
+        try {
+            user = usersByName.get(username);
+            if (user == null) {
+                Logger.info(LogEvent.USER_SESSION, "User not found, creating new user: " + username);
+                user = createUser(username);
+            }
+        } finally {
+            lock.unlock();
         }
         return user;
     }
     
     public User getUserByUsername(String username) {
-        return registeredUsers.get(username);
+        return usersByName.get(username);
     }
 
     public User getUserById(UUID userId) {
-        for (User user : registeredUsers.values()) {
-            if (user.getId().equals(userId)) {
-                return user;
-            }
-        }
-        return null;
+        return usersById.get(userId);
     }
     
     public boolean userExists(String username) {
-        return registeredUsers.containsKey(username);
+        return usersByName.containsKey(username);
     }
    
     public boolean userExists(UUID userId) {
-        return getUserById(userId) != null;
+        return usersById.containsKey(userId);
     }
   
     public Map<String, User> getAllUsers() {
-        return new HashMap<>(registeredUsers);
+        return new HashMap<>(usersByName);
     }
   
     public int getTotalUserCount() {
-        return registeredUsers.size();
+        return usersById.size();
     }
    
     public boolean removeUser(String username) {
-        User removedUser = registeredUsers.remove(username);
-        if (removedUser != null) {
-            Logger.info(LogEvent.USER_SESSION, "User removed: " + username + " (ID: " + removedUser.getId() + ")");
-            return true;
-        } else {
-            Logger.warning(LogEvent.USER_SESSION, "Attempted to remove non-existent user: " + username);
-            return false;
+        lock.lock();
+        try {
+            User removedUser = usersByName.remove(username);
+            if (removedUser != null) {
+                usersById.remove(removedUser.getId());
+                if (store != null) {
+                    try {
+                        store.appendRemove(removedUser.getId());
+                    } catch (IOException e) {
+                        Logger.error(LogEvent.DATABASE, "Failed to persist removal of user " + username, e);
+                    }
+                }
+                Logger.info(LogEvent.USER_SESSION, "User removed: " + username + " (ID: " + removedUser.getId() + ")");
+                return true;
+            } else {
+                Logger.warning(LogEvent.USER_SESSION, "Attempted to remove non-existent user: " + username);
+                return false;
+            }
+        } finally {
+            lock.unlock();
         }
     }
   
     // Allows changing a user's display name, ensuring the new name isn't already taken.
+    // The new name is claimed before the old one is released, so a concurrent lookup finds the
+    // user under one name or the other, never under neither.
     public boolean updateUsername(String oldUsername, String newUsername) {
-        User user = registeredUsers.get(oldUsername);
-        if (user == null) {
-            Logger.warning(LogEvent.USER_SESSION, "Update failed: user does not exist: " + oldUsername);
-            return false;
+        lock.lock();
+        try {
+            User user = usersByName.get(oldUsername);
+            if (user == null) {
+                Logger.warning(LogEvent.USER_SESSION, "Update failed: user does not exist: " + oldUsername);
+                return false;
+            }
+
+            if (usersByName.putIfAbsent(newUsername, user) != null) {
+                Logger.warning(LogEvent.USER_SESSION, "Update failed: new username already in use: " + newUsername);
+                return false;
+            }
+
+            user.setUserName(newUsername);
+            usersByName.remove(oldUsername, user);
+            if (store != null) {
+                try {
+                    store.appendRename(user.getId(), newUsername);
+                } catch (IOException e) {
+                    Logger.error(LogEvent.DATABASE, "Failed to persist rename of user " + oldUsername, e);
+                }
+            }
+
+            Logger.info(LogEvent.USER_SESSION, "Username updated from " + oldUsername + " to " + newUsername);
+            return true;
+        } finally {
+            lock.unlock();
         }
-        
-        if (registeredUsers.containsKey(newUsername)) {
-            Logger.warning(LogEvent.USER_SESSION, "Update failed: new username already in use: " + newUsername);
-            return false;
+    }
+
+    private void index(User user) {
+        usersByName.put(user.getUserName(), user);
+        usersById.put(user.getId(), user);
+    }
+
+    private void startSnapshotter() {
+        if (store.getSnapshotIntervalMillis() <= 0) return;
+        Thread snapshotter = new Thread(this::runSnapshotter, "user-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    private void runSnapshotter() {
+        while (true) {
+            try {
+                Thread.sleep(store.getSnapshotIntervalMillis());
+                if (store.isSnapshotDue()) snapshot();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Logger.error(LogEvent.DATABASE, "User snapshot failed", e);
+            }
+        }
+    }
+
+    // Captures the directory and switches the log under the lock that orders all changes, so the
+    // snapshot holds exactly what was logged before the switch. Writing it happens outside the lock.
+    void snapshot() throws IOException {
+        long generation;
+        UUID[] ids;
+        String[] names;
+        lock.lock();
+        try {
+            generation = store.rotate();
+            ids = new UUID[usersById.size()];
+            names = new String[ids.length];
+            int i = 0;
+            for (User user : usersById.values()) {
+                ids[i] = user.getId();
+                names[i] = user.getUserName();
+                i++;
+            }
+        } finally {
+            lock.unlock();
         }
-        
-        user.setUserName(newUsername);
-        registeredUsers.remove(oldUsername);
-        registeredUsers.put(newUsername, user);
-        
-        Logger.info(LogEvent.USER_SESSION, "Username updated from " + oldUsername + " to " + newUsername);
-        return true;
+        store.writeSnapshot(generation, ids, names);
     }
 }
@@ -12,13 +12,15 @@ import java.util.Map;
 import java.util.Scanner;
 import java.util.UUID;
 
+import common.models.MessageModel;
+import common.protocols.BinaryCodec;
 import common.protocols.MessageProtocol;
 
 public class ClientUI {
     // Defines what the client is currently waiting for from the user.
     private enum ClientState {
         AWAITING_MENU_CHOICE, AWAITING_CHATROOM_CHOICE, AWAITING_MESSAGE,
-        AWAITING_SYSTEM_MESSAGE, AWAITING_FILE_ACCEPT
+        AWAITING_SYSTEM_MESSAGE, AWAITING_FILE_ACCEPT, AWAITING_SEARCH_QUERY
     }
 
     private static final String SERVER_ADDRESS = "localhost";
@@ -28,6 +30,8 @@ public class ClientUI {
     private Socket controlSocket;
     private DataOutputStream controlOut;
     private DataInputStream controlIn;
+    // True once the server agreed to the binary (v2) protocol during the handshake.
+    private boolean binaryProtocol = false;
     
     private Scanner scanner;
     private UUID chatroomId;
@@ -36,6 +40,8 @@ public class ClientUI {
     // Caches available chatrooms locally to avoid requesting them repeatedly.
     private Map<String, UUID> chatroomMap = new HashMap<>();
     private volatile ClientState clientState = ClientState.AWAITING_MENU_CHOICE;
+    // Cursor for the next older page of the current room's history, from the last HISTORY_MORE line.
+    private volatile String olderHistoryCursor = null;
 
     // Holds the state for a single file transfer at a time.
     private UUID fileTransferId = null;
@@ -52,6 +58,7 @@ public class ClientUI {
             this.scanner = new Scanner(System.in);
             
             System.out.println("Connection established to server on port " + controlPort);
+            negotiateProtocol();
             
             // A separate thread is crucial for listening to the server
             // without blocking the main thread that reads user input.
@@ -70,7 +77,7 @@ public class ClientUI {
                 String input = scanner.nextLine();
                 if (!isLoggedIn) {
                     this.username = input;
-                    controlOut.writeUTF("LOGIN::" + this.username);
+                    sendLogin(this.username);
                 } else {
                     switch (clientState) {
                         case AWAITING_MENU_CHOICE: handleMenuChoice(input); break;
@@ -78,6 +85,7 @@ public class ClientUI {
                         case AWAITING_MESSAGE: handleMessageInput(input); break;
                         case AWAITING_SYSTEM_MESSAGE: handleSystemMessageInput(input); break;
                         case AWAITING_FILE_ACCEPT: handleFileAccept(input); break;
+                        case AWAITING_SEARCH_QUERY: handleSearchQuery(input); break;
                     }
                 }
             }
@@ -92,7 +100,7 @@ public class ClientUI {
     }
     
     private void showMainMenu() {
-        System.out.println("\n--- Main Menu ---\n1. Send message to chatroom\n2. Change chatroom\n3. Send system message\n4. Logout\n5. Send a file");
+        System.out.println("\n--- Main Menu ---\n1. Send message to chatroom\n2. Change chatroom\n3. Send system message\n4. Logout\n5. Send a file\n6. Load older messages\n7. Search messages");
         System.out.print("Select an action: ");
         clientState = ClientState.AWAITING_MENU_CHOICE;
     }
@@ -104,6 +112,8 @@ public class ClientUI {
             case "3": sendSystemMessage(); break;
             case "4": logout(); break;
             case "5": initiateFileTransfer(); break;
+            case "6": loadOlderMessages(); break;
+            case "7": searchMessages(); break;
             default: System.out.println("Invalid choice. Please try again."); showMainMenu(); break;
         }
     }
@@ -113,7 +123,7 @@ public class ClientUI {
         String lowerCaseRoomName = roomName.toLowerCase();
         if (chatroomMap.containsKey(lowerCaseRoomName)) {
             this.chatroomId = chatroomMap.get(lowerCaseRoomName);
-            controlOut.writeUTF("JOIN_ROOM::" + this.chatroomId.toString());
+            sendJoinRoom(this.chatroomId);
             System.out.println("Joining chatroom: " + roomName);
         } else {
             System.out.println("Invalid chatroom name. Please try again.");
@@ -123,15 +133,13 @@ public class ClientUI {
     
     private void handleMessageInput(String messageContent) throws IOException {
         MessageProtocol msgProtocol = new MessageProtocol();
-        String message = msgProtocol.buildTextMessage(username, chatroomId, messageContent);
-        controlOut.writeUTF(message);
+        sendChatMessage(msgProtocol, msgProtocol.createTextMessage(username, chatroomId, messageContent));
         showMainMenu();
     }
 
     private void handleSystemMessageInput(String messageContent) throws IOException {
         MessageProtocol msgProtocol = new MessageProtocol();
-        String message = msgProtocol.buildSystemMessage(messageContent, chatroomId);
-        controlOut.writeUTF(message);
+        sendChatMessage(msgProtocol, msgProtocol.createSystemMessage(messageContent, chatroomId));
         showMainMenu();
     }
 
@@ -145,8 +153,23 @@ public class ClientUI {
         else { System.out.print("Enter your system message: "); clientState = ClientState.AWAITING_SYSTEM_MESSAGE; }
     }
 
-    private void changeChatroom() throws IOException { System.out.println("Fetching available chatrooms..."); controlOut.writeUTF("LIST_ROOMS"); }
+    private void changeChatroom() throws IOException {
+        System.out.println("Fetching available chatrooms...");
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeListRooms()); else controlOut.writeUTF("LIST_ROOMS");
+    }
     
+    // Requests the page of history just before the oldest message shown so far.
+    private void loadOlderMessages() throws IOException {
+        String cursor = olderHistoryCursor;
+        if (chatroomId == null || cursor == null) {
+            System.out.println("No older messages to load.");
+            showMainMenu();
+            return;
+        }
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeHistory(chatroomId, cursor, 0));
+        else controlOut.writeUTF("HISTORY::" + chatroomId + "::" + cursor);
+    }
+
     // Gathers file info and sends a request to the server to initiate a transfer.
     private void initiateFileTransfer() throws IOException {
         System.out.print("Enter the recipient's username: ");
@@ -157,7 +180,8 @@ public class ClientUI {
         File file = new File(fileToSendPath);
         if (file.exists() && !file.isDirectory()) {
             long fileSize = file.length();
-            controlOut.writeUTF("WANT_TO_SEND_FILE::" + fileToSendRecipient + "::" + filename + "::" + fileSize);
+            if (binaryProtocol) writeFrame(BinaryCodec.encodeWantToSendFile(fileToSendRecipient, filename, fileSize));
+            else controlOut.writeUTF("WANT_TO_SEND_FILE::" + fileToSendRecipient + "::" + filename + "::" + fileSize);
         } else {
             System.out.println("Error: The file '" + filename + "' does not exist in your 'uploads' folder.");
             showMainMenu();
@@ -166,13 +190,10 @@ public class ClientUI {
 
     // Handles the user's 'ja' or 'nej' response to a file request.
     private void handleFileAccept(String answer) throws IOException {
-        if (answer.equalsIgnoreCase("ja")) {
-            controlOut.writeUTF("ACCEPT_FILE::" + this.fileTransferId);
-            System.out.println("Accepted file transfer. Waiting for instructions from server...");
-        } else {
-            controlOut.writeUTF("REJECT_FILE::" + this.fileTransferId);
-            System.out.println("Rejected file transfer.");
-        }
+        boolean accepted = answer.equalsIgnoreCase("ja");
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeFileResponse(this.fileTransferId, accepted));
+        else controlOut.writeUTF((accepted ? "ACCEPT_FILE::" : "REJECT_FILE::") + this.fileTransferId);
+        System.out.println(accepted ? "Accepted file transfer. Waiting for instructions from server..." : "Rejected file transfer.");
         this.fileTransferId = null; // Reset transfer state.
         showMainMenu();
     }
@@ -235,20 +256,82 @@ public class ClientUI {
         }
     }
 
-    private void logout() throws IOException { controlOut.writeUTF("LOGOUT"); }
+    private void logout() throws IOException {
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeLogout()); else controlOut.writeUTF("LOGOUT");
+    }
+
+    // Asks the server for the binary protocol. Servers without v2 support answer with an
+    // "Invalid command" line, in which case the client keeps using the text protocol.
+    private void negotiateProtocol() throws IOException {
+        controlOut.writeUTF(BinaryCodec.helloCommand());
+        String reply = controlIn.readUTF();
+        binaryProtocol = reply.equals(BinaryCodec.helloCommand());
+        System.out.println("Using " + (binaryProtocol ? "binary protocol v" + BinaryCodec.VERSION : "legacy text protocol") + ".");
+    }
+
+    private void sendLogin(String username) throws IOException {
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeLogin(username)); else controlOut.writeUTF("LOGIN::" + username);
+    }
+
+    private void sendJoinRoom(UUID roomId) throws IOException {
+        olderHistoryCursor = null;
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeJoinRoom(roomId)); else controlOut.writeUTF("JOIN_ROOM::" + roomId);
+    }
+
+    private void sendChatMessage(MessageProtocol msgProtocol, MessageModel message) throws IOException {
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeSendMessage(message)); else controlOut.writeUTF(msgProtocol.toCommand(message));
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        BinaryCodec.writeFrame(controlOut, frame);
+    }
+
+    // Reads the next server line in whichever protocol is active. Typed v2 frames are turned into
+    // the line the text protocol sends for them, so the rest of the client handles both alike.
+    private String readServerMessage() throws IOException {
+        if (!binaryProtocol) return controlIn.readUTF();
+        BinaryCodec.Frame frame = BinaryCodec.readFrame(controlIn);
+        switch (frame.opcode()) {
+            case BinaryCodec.OP_TEXT:
+                return frame.readString();
+            case BinaryCodec.OP_CHAT_MESSAGE: {
+                MessageModel message = BinaryCodec.decodeMessage(frame);
+                return "[" + frame.readString() + " | " + message.sender + "]: " + message.content;
+            }
+            case BinaryCodec.OP_HISTORY_MESSAGE: {
+                MessageModel message = BinaryCodec.decodeMessage(frame);
+                return "[" + message.sender + "]: " + message.content;
+            }
+            case BinaryCodec.OP_HISTORY_MORE:
+                return "HISTORY_MORE::" + frame.readUuid() + "::" + frame.readString();
+            default:
+                return "Unexpected frame from server (opcode " + frame.opcode() + ")";
+        }
+    }
 
     private void closeConnection() {
         try { if (controlSocket != null) controlSocket.close(); } catch (IOException e) { /* Ignored */ }
         System.exit(0);
     }
 
+    private void searchMessages() throws IOException {
+        if (chatroomId == null) { System.out.println("Select a chatroom before searching."); changeChatroom(); }
+        else { System.out.print("Search for (end a word with * to match prefixes): "); clientState = ClientState.AWAITING_SEARCH_QUERY; }
+    }
+
+    private void handleSearchQuery(String query) throws IOException {
+        if (binaryProtocol) writeFrame(BinaryCodec.encodeSearch(chatroomId, query));
+        else controlOut.writeUTF("SEARCH::" + chatroomId + "::" + query);
+        showMainMenu();
+    }
+
     // Handles all incoming communication from the server in the background.
     private class ServerListener implements Runnable {
         @Override
         public void run() {
             try {
                 while (true) {
-                    String serverMessage = controlIn.readUTF();
+                    String serverMessage = readServerMessage();
                     
                     if (serverMessage.startsWith("INCOMING_FILE::")) {
                         String[] parts = serverMessage.split("::", 5);
@@ -274,6 +357,24 @@ public class ClientUI {
                         System.out.println("\nINFO: Server is ready. Starting download...");
                         new Thread(() -> receiveFile(dataPort, transferId)).start();
                     }
+                    else if (serverMessage.startsWith("HISTORY_MORE::")) {
+                        // Only the "before" cursor is used; this client pages backwards.
+                        String[] parts = serverMessage.split("::", 3);
+                        if (parts.length == 3 && parts[2].startsWith("before:") && parts[1].equals(String.valueOf(chatroomId))) {
+                            olderHistoryCursor = parts[2];
+                            System.out.print("\r(Older messages available - choose 6 to load them)\n");
+                        }
+                    }
+                    else if (serverMessage.startsWith("--- History for ") || serverMessage.startsWith("--- Displaying history for ")) {
+                        // A new page starts; its HISTORY_MORE line (if any) sets the next cursor.
+                        olderHistoryCursor = null;
+                        handleStandardMessages(serverMessage);
+                    }
+                    else if (serverMessage.startsWith("THROTTLED::")) {
+                        String[] parts = serverMessage.split("::", 3);
+                        String retry = parts.length == 3 ? " Try again in " + parts[2] + " ms." : "";
+                        handleStandardMessages("Slow down: too many " + parts[1] + " requests." + retry);
+                    }
                     else if (serverMessage.startsWith("REJECT_FILE_TRANSFER::")) {
                         System.out.println("\nINFO: " + serverMessage.split("::", 2)[1] + " rejected the file transfer.");
                         showMainMenu();
@@ -294,7 +395,7 @@ public class ClientUI {
     private void handleStandardMessages(String serverMessage) throws IOException {
         if (serverMessage.startsWith("SUCCESS: Logget ind")) { isLoggedIn = true; System.out.println("\n" + serverMessage); showMainMenu(); }
         else if (serverMessage.startsWith("FEJL: Login mislykkedes.")) { System.out.println(serverMessage); System.out.print("Enter your username: "); }
-        else if (serverMessage.equals("START_CHATROOM_LIST")) { displayChatroomList(controlIn); }
+        else if (serverMessage.equals("START_CHATROOM_LIST")) { displayChatroomList(); }
         else if (serverMessage.startsWith("SUCCESS: Logget ud")) { isLoggedIn = false; System.out.println("\n" + serverMessage); closeConnection(); }
         else {
             // Using a carriage return `\r` clears the current line (e.g., "Select an action: ")
@@ -307,11 +408,11 @@ public class ClientUI {
     }
 
     // Reads and displays the list of chatrooms from the server.
-    private void displayChatroomList(DataInputStream dataIn) throws IOException {
+    private void displayChatroomList() throws IOException {
         System.out.println("\n--- Available Chatrooms ---");
         chatroomMap.clear();
         String line;
-        while (!(line = dataIn.readUTF()).equals("END_CHATROOM_LIST")) {
+        while (!(line = readServerMessage()).equals("END_CHATROOM_LIST")) {
             String[] parts = line.split("::", 2);
             if (parts.length == 2) {
                 System.out.println("- " + parts[1]);
@@ -1,48 +1,105 @@
 package common.models;
 
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 
+import Services.ClientSession;
+
 // Represents a single chat room where users can interact.
+// Membership is read on every broadcast but changes only on joins and leaves, so it is kept as an
+// immutable snapshot array that is copied and republished on each change (copy-on-write).
+// Broadcasts iterate the current snapshot without locking, copying or looking up sessions.
 public class ChatRoom {
     private UUID id;
     private String roomName;
-    // Stores the unique IDs of users currently in the room.
-    private Set<UUID> members;
+    // The users currently in the room with their sessions. Never modified in place; replaced under 'this'.
+    private volatile Member[] members;
     private LocalDateTime createdAt;
     private UUID createdBy;
     private int maxMembers;
 
     public ChatRoom(String roomName, UUID createdBy) {
-        this.id = UUID.randomUUID();
+        this(UUID.randomUUID(), roomName, createdBy);
+    }
+
+    // Used for rooms that must keep the same ID across restarts, e.g. the default rooms,
+    // whose persisted history is keyed by room ID.
+    public ChatRoom(UUID id, String roomName, UUID createdBy) {
+        this.id = id;
         this.roomName = roomName;
         this.createdBy = createdBy;
         this.createdAt = LocalDateTime.now();
-        this.members = new HashSet<>();
         this.maxMembers = 50;
         // The user who creates the room is automatically added as a member.
-        this.members.add(createdBy);
+        // There is no session for them yet, so they receive nothing until they join.
+        this.members = new Member[] { new Member(createdBy, null) };
+    }
+
+    // One member of the room and the session their messages are delivered to.
+    public static final class Member {
+        public final UUID userId;
+        // Null for a member without a connection, such as the room's creator.
+        public final ClientSession session;
+
+        Member(UUID userId, ClientSession session) {
+            this.userId = userId;
+            this.session = session;
+        }
     }
     
     // Getters
     public UUID getId() { return id; }
     public String getRoomName() { return roomName; }
-    // Returns a copy of the member set to prevent direct modification from outside.
-    public Set<UUID> getMembers() { return new HashSet<>(members); }
+    // Returns a copy of the member IDs to prevent direct modification from outside.
+    public Set<UUID> getMembers() {
+        Set<UUID> ids = new HashSet<>();
+        for (Member member : members) ids.add(member.userId);
+        return ids;
+    }
+    // The current members. The array is shared and must not be modified; it does not change
+    // when members join or leave later.
+    public Member[] getMemberSnapshot() { return members; }
     public int getMaxMembers() { return maxMembers; }
     
     // Adds a user to the chat room, but only if it's not full.
-    public boolean addMember(UUID userId) {
-        if (members.size() < maxMembers) {
-            return members.add(userId);
+    // A user who is already a member gets their session replaced.
+    public synchronized boolean addMember(UUID userId, ClientSession session) {
+        Member[] current = members;
+        int existing = indexOf(current, userId);
+        if (existing >= 0) {
+            Member[] next = current.clone();
+            next[existing] = new Member(userId, session);
+            members = next;
+            return false;
+        }
+        if (current.length >= maxMembers) {
+            return false; // Room is full.
         }
-        return false; // Room is full.
+        Member[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = new Member(userId, session);
+        members = next;
+        return true;
     }
 
     // Removes a user from the chat room.
-    public boolean removeMember(UUID userId) {
-        return members.remove(userId);
+    public synchronized boolean removeMember(UUID userId) {
+        Member[] current = members;
+        int index = indexOf(current, userId);
+        if (index < 0) return false;
+        Member[] next = new Member[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, next.length - index);
+        members = next;
+        return true;
+    }
+
+    private static int indexOf(Member[] snapshot, UUID userId) {
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i].userId.equals(userId)) return i;
+        }
+        return -1;
     }
 }
\ No newline at end of file
@@ -1,61 +1,370 @@
 package common.models;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import server.storage.MessageIdIndex;
+import server.storage.MessageLog;
+import server.storage.RetentionPolicy;
+import server.storage.RoomHistory;
+import server.storage.StringDictionary;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+import server.utils.ServerConfig;
 
 // This class acts as an in-memory database for chat messages.
+// Messages are partitioned per chat room, so reading one room's history never scans the others.
+// When a MessageLog is attached, every change is also journaled to disk and the history
+// is rebuilt from the log when the server starts.
+//
+// Retention policies (global and per room: max messages, max age, max bytes) and an optional
+// global heap budget keep history from growing without bound. They are enforced a little at a
+// time: a few evictions on each append plus a background sweep in small batches per room.
+// Evicted messages are gone for good; with a MessageLog they are journaled as deletes.
 public class Datahandler {
     
-    private List<MessageModel> messagesArray;
+    // Bits of an index entry that hold the slot; the bits above hold the room's ordinal.
+    private static final int SEQ_BITS = 40;
+    private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+
+    private final Map<UUID, RoomHistory> rooms = new ConcurrentHashMap<>();
+    // Rooms by ordinal, so an index entry can name its room with a few bits. Append-only.
+    private final List<RoomHistory> roomsByOrdinal = new CopyOnWriteArrayList<>();
+    private final Map<UUID, Integer> roomOrdinals = new ConcurrentHashMap<>();
+    // messageId -> (room ordinal, slot), so lookups, edits and deletes never scan.
+    private final MessageIdIndex index = new MessageIdIndex();
+    // Sender names and message types are stored once and referenced by code.
+    private final StringDictionary dictionary = new StringDictionary();
+    // Null when the server runs without persistence.
+    private final MessageLog messageLog;
+
+    // -Dchat.retention.maxMessages / .maxAgeMs / .maxBytes, overridable per room with
+    // -Dchat.retention.<roomId>.maxMessages etc.
+    private final RetentionPolicy defaultPolicy = RetentionPolicy.fromConfig("chat.retention", RetentionPolicy.UNLIMITED);
+    private final Map<UUID, RetentionPolicy> roomPolicies = new ConcurrentHashMap<>();
+    // Total history heap allowed across all rooms (-Dchat.history.maxHeapMb); 0 disables the budget.
+    // Compared against the message data (see getHistoryMessageBytes), which eviction frees.
+    private final long heapBudgetBytes = ServerConfig.getLong("chat.history.maxHeapMb", 0) * 1024 * 1024;
+    private final long sweepIntervalMillis = ServerConfig.getLong("chat.retention.intervalMs", 1000);
+    private final int sweepBatch = Math.max(1, ServerConfig.getInt("chat.retention.batch", 10_000));
+    // Evictions done while appending; enough to keep up with one new message at a time.
+    private static final int APPEND_EVICTION_BATCH = 4;
+    private final RoomHistory.EvictionListener onEvicted = messageIds -> {
+        for (UUID messageId : messageIds) index.remove(messageId);
+        journalDeletes(messageIds);
+    };
 
     public Datahandler() {
-        this.messagesArray = new ArrayList<>();
+        this.messageLog = null;
+        startRetentionSweeper();
+    }
+
+    public Datahandler(MessageLog messageLog) {
+        MessageLog recovered = messageLog;
+        try {
+            replayFrom(messageLog);
+        } catch (IOException e) {
+            Logger.error(LogEvent.DATABASE, "Could not recover the message log. Running without persistence.", e);
+            recovered = null;
+        }
+        this.messageLog = recovered;
+        startRetentionSweeper();
+    }
+
+    // Returns false, storing nothing, if a message with the same ID is already stored.
+    public boolean addMessageToArray(MessageModel message) {
+        return add(message, false);
+    }
+
+    // Stores a message whose ID was claimed earlier with reserveMessageId.
+    public void addReservedMessage(MessageModel message) {
+        add(message, true);
     }
 
-    public void addMessageToArray(MessageModel message) {
-        messagesArray.add(message);
+    // Stores a batch of messages and journals them with one log write (see MessageLog.appendAll).
+    // Messages whose ID is already stored are skipped.
+    public void addMessages(List<MessageModel> messages) {
+        addAll(messages, false);
     }
 
-    // Safely removes a message using an iterator to avoid concurrency issues.
-    public void deleteMessage(UUID id) {
-        Iterator<MessageModel> iterator = messagesArray.iterator();
-        while (iterator.hasNext()) {
-            MessageModel message = iterator.next();
-            if (message.messageId.equals(id)) {
-                iterator.remove();
-                break; 
+    // addMessages for messages whose IDs were claimed with reserveMessageId.
+    public void addReservedMessages(List<MessageModel> messages) {
+        addAll(messages, true);
+    }
+
+    // Claims a message ID before the message is stored, e.g. when storing happens later on
+    // another thread. Returns false if the ID is already stored or claimed.
+    public boolean reserveMessageId(UUID id) {
+        return index.reserve(id);
+    }
+
+    private boolean add(MessageModel message, boolean reserved) {
+        if (!store(message, reserved)) return false;
+        if (messageLog != null) {
+            try {
+                messageLog.append(message);
+            } catch (IOException e) {
+                Logger.error(LogEvent.DATABASE, "Failed to persist message " + message.messageId, e);
             }
         }
+        return true;
     }
 
-    public MessageModel getMessageById(UUID id) {
-        for (MessageModel message : messagesArray) {
-            if (message.messageId.equals(id)) {
-                return message;
+    private void addAll(List<MessageModel> messages, boolean reserved) {
+        List<MessageModel> stored = new ArrayList<>(messages.size());
+        for (MessageModel message : messages) {
+            if (store(message, reserved)) stored.add(message);
+        }
+        if (messageLog != null && !stored.isEmpty()) {
+            try {
+                messageLog.appendAll(stored);
+            } catch (IOException e) {
+                Logger.error(LogEvent.DATABASE, "Failed to persist a batch of " + stored.size() + " messages", e);
             }
         }
-        return null;
+    }
+
+    // The history of one room. Created empty on first use.
+    public RoomHistory getRoomHistory(UUID chatroomId) {
+        RoomHistory room = rooms.get(chatroomId);
+        return room != null ? room : createRoomHistory(chatroomId);
+    }
+
+    private synchronized RoomHistory createRoomHistory(UUID chatroomId) {
+        RoomHistory room = rooms.get(chatroomId);
+        if (room == null) {
+            room = new RoomHistory(chatroomId, dictionary);
+            roomOrdinals.put(chatroomId, roomsByOrdinal.size());
+            roomsByOrdinal.add(room);
+            rooms.put(chatroomId, room);
+        }
+        return room;
+    }
+
+    // Removes a message, leaving a tombstone in its room. Returns false if it does not exist.
+    public boolean deleteMessage(UUID id) {
+        long slot = index.remove(id);
+        if (slot == MessageIdIndex.ABSENT || roomOf(slot).tombstone(seqOf(slot)) == null) {
+            return false;
+        }
+        journalDelete(id);
+        return true;
+    }
+
+    public boolean containsMessage(UUID id) {
+        return index.contains(id);
+    }
+
+    public MessageModel getMessageById(UUID id) {
+        long slot = index.get(id);
+        return slot != MessageIdIndex.ABSENT ? roomOf(slot).get(seqOf(slot)) : null;
     }
 
     // Finds a message by its ID and updates its content and timestamp.
-    public void updateMessage(UUID id, String newText) {
-        for (MessageModel message : messagesArray) {
-            if (message.messageId.equals(id)) {
-                message.content = newText;
-                message.timestamp = java.time.LocalDateTime.now();
-                break;
-            }
+    // Returns false if the message does not exist.
+    public boolean updateMessage(UUID id, String newText) {
+        long slot = index.get(id);
+        MessageModel message = slot != MessageIdIndex.ABSENT ? roomOf(slot).edit(seqOf(slot), newText, LocalDateTime.now()) : null;
+        if (message == null) {
+            return false;
         }
+        journalEdit(message);
+        return true;
     }
 
+    // A snapshot of every stored message, grouped by room. O(total history); not for hot paths.
     public List<MessageModel> getMessages() {
-        return messagesArray;
+        List<MessageModel> all = new ArrayList<>();
+        for (RoomHistory history : rooms.values()) {
+            all.addAll(history.snapshot());
+        }
+        return all;
     }
     
     // Allows replacing the entire message list, mainly for testing or initial setup.
     public void setMessages(List<MessageModel> messages) {
-        this.messagesArray = messages;
+        rooms.clear();
+        roomsByOrdinal.clear();
+        roomOrdinals.clear();
+        index.clear();
+        for (MessageModel message : messages) {
+            store(message, false);
+        }
+    }
+
+    // Refuses a message whose ID is already taken; indexing it would orphan the earlier one.
+    // The ID is reserved before the message is appended, so two threads storing the same ID
+    // cannot both get in; 'reserved' says the caller has already done so.
+    private boolean store(MessageModel message, boolean reserved) {
+        if (!reserved && !index.reserve(message.messageId)) {
+            Logger.warning(LogEvent.DATABASE, "Dropped message with duplicate ID {}", message.messageId);
+            return false;
+        }
+        RoomHistory room;
+        long seq;
+        try {
+            room = getRoomHistory(message.chatroomId);
+            seq = room.append(message);
+        } catch (RuntimeException e) {
+            index.release(message.messageId);
+            throw e;
+        }
+        index.put(message.messageId, ((long) roomOrdinals.get(message.chatroomId) << SEQ_BITS) | seq);
+        RetentionPolicy policy = getRetentionPolicy(message.chatroomId);
+        if (!policy.isUnlimited()) {
+            room.enforce(policy, System.currentTimeMillis(), APPEND_EVICTION_BATCH, onEvicted);
+        }
+        return true;
+    }
+
+    public RetentionPolicy getRetentionPolicy(UUID chatroomId) {
+        RetentionPolicy policy = roomPolicies.get(chatroomId);
+        if (policy == null) {
+            policy = RetentionPolicy.fromConfig("chat.retention." + chatroomId, defaultPolicy);
+            roomPolicies.put(chatroomId, policy);
+        }
+        return policy;
+    }
+
+    // Changes one room's limits at runtime. The sweeper applies them within one interval.
+    public void setRetentionPolicy(UUID chatroomId, RetentionPolicy policy) {
+        roomPolicies.put(chatroomId, policy);
+    }
+
+    // Approximate heap held by all room histories.
+    public long getHistoryFootprintBytes() {
+        long total = 0;
+        for (RoomHistory room : rooms.values()) total += room.footprintBytes();
+        return total;
+    }
+
+    // Heap held by the stored messages of all rooms, without spare capacity or search indexes.
+    public long getHistoryMessageBytes() {
+        long total = 0;
+        for (RoomHistory room : rooms.values()) total += room.messageBytes();
+        return total;
+    }
+
+    private void startRetentionSweeper() {
+        if (sweepIntervalMillis <= 0) return;
+        Thread sweeper = new Thread(this::runRetentionSweeper, "history-retention");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    private void runRetentionSweeper() {
+        while (true) {
+            try {
+                Thread.sleep(sweepIntervalMillis);
+                sweepOnce();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Logger.error(LogEvent.DATABASE, "History retention sweep failed", e);
+            }
+        }
+    }
+
+    // One incremental pass: every room gets at most 'sweepBatch' evictions for its own policy,
+    // then the coldest rooms give up history until the heap budget is met again.
+    private void sweepOnce() {
+        long now = System.currentTimeMillis();
+        long evicted = 0;
+        for (RoomHistory room : rooms.values()) {
+            RetentionPolicy policy = getRetentionPolicy(room.getRoomId());
+            if (!policy.isUnlimited()) evicted += room.enforce(policy, now, sweepBatch, onEvicted);
+        }
+        if (heapBudgetBytes > 0) {
+            long excess = getHistoryMessageBytes() - heapBudgetBytes;
+            if (excess > 0) {
+                long freedTotal = 0;
+                List<RoomHistory> coldestFirst = new ArrayList<>(rooms.values());
+                coldestFirst.sort((a, b) -> Long.compare(a.getLastAccessMillis(), b.getLastAccessMillis()));
+                for (RoomHistory room : coldestFirst) {
+                    while (excess > 0 && room.size() > 0) {
+                        long freed = room.evictOldest(excess, sweepBatch, onEvicted);
+                        if (freed <= 0) break;
+                        excess -= freed;
+                        freedTotal += freed;
+                    }
+                    if (excess <= 0) break;
+                }
+                if (freedTotal > 0) {
+                    Logger.info(LogEvent.DATABASE, "History heap budget of {} bytes exceeded; evicted {} bytes of the oldest messages of the coldest rooms", heapBudgetBytes, freedTotal);
+                }
+            }
+        }
+        if (evicted > 0) {
+            Logger.debug(LogEvent.DATABASE, "Retention evicted {} messages", evicted);
+        }
+    }
+
+    private RoomHistory roomOf(long slot) {
+        return roomsByOrdinal.get((int) (slot >>> SEQ_BITS));
+    }
+
+    private static long seqOf(long slot) {
+        return slot & SEQ_MASK;
+    }
+
+    private void journalEdit(MessageModel message) {
+        if (messageLog == null) return;
+        try {
+            messageLog.appendEdit(message.messageId, message.timestamp, message.content);
+        } catch (IOException e) {
+            Logger.error(LogEvent.DATABASE, "Failed to persist edit of message " + message.messageId, e);
+        }
+    }
+
+    private void journalDelete(UUID id) {
+        if (messageLog == null) return;
+        try {
+            messageLog.appendDelete(id);
+        } catch (IOException e) {
+            Logger.error(LogEvent.DATABASE, "Failed to persist deletion of message " + id, e);
+        }
+    }
+
+    private void journalDeletes(List<UUID> ids) {
+        if (messageLog == null) return;
+        try {
+            messageLog.appendDeletes(ids);
+        } catch (IOException e) {
+            Logger.error(LogEvent.DATABASE, "Failed to persist eviction of " + ids.size() + " messages", e);
+        }
+    }
+
+    // Rebuilds the in-memory history from the log. A message may be replayed more than once
+    // (after an interrupted compaction); the later copy replaces the earlier one in place.
+    private void replayFrom(MessageLog log) throws IOException {
+        log.recover(new MessageLog.ReplayHandler() {
+            @Override
+            public void onAppend(MessageModel message) {
+                long slot = index.get(message.messageId);
+                if (slot != MessageIdIndex.ABSENT) {
+                    roomOf(slot).replace(seqOf(slot), message);
+                } else {
+                    store(message, false);
+                }
+            }
+
+            @Override
+            public void onEdit(UUID messageId, LocalDateTime timestamp, String content) {
+                long slot = index.get(messageId);
+                if (slot != MessageIdIndex.ABSENT) roomOf(slot).edit(seqOf(slot), content, timestamp);
+            }
+
+            @Override
+            public void onDelete(UUID messageId) {
+                long slot = index.remove(messageId);
+                if (slot != MessageIdIndex.ABSENT) roomOf(slot).tombstone(seqOf(slot));
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -5,7 +5,8 @@ import java.util.UUID;
 // A straightforward class to hold user information.
 public class User {
     private UUID id;
-    private String userName;
+    // Volatile because a rename on one thread must be seen by lookups on all others.
+    private volatile String userName;
 
     public User(UUID id, String userName, String password) {
         this.id = id;
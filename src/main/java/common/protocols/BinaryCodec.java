@@ -0,0 +1,288 @@
+package common.protocols;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.UUID;
+
+import common.models.MessageModel;
+
+// The binary control protocol (version 2), shared by the server and the client.
+//
+// Every frame is: [varint length][opcode byte][payload], where length covers opcode + payload.
+// Strings are a varint byte count followed by standard UTF-8, UUIDs are two big-endian longs,
+// numbers are varints, and timestamps are epoch milliseconds. Unlike writeUTF there is no 64 KB cap.
+//
+// A connection always starts in the legacy "::" text protocol. A client that understands v2 sends
+// "HELLO::2"; a server that agrees answers "HELLO::2" and both sides switch to binary frames.
+// Older servers reply "Invalid command: HELLO", so the client simply stays on the text protocol.
+//
+// Server -> client, chat messages (room broadcasts, history pages, search results) and history
+// cursors have their own frames; everything else (replies, errors, notices) is an OP_TEXT line.
+public final class BinaryCodec {
+    public static final int VERSION = 2;
+    public static final int LEGACY_VERSION = 1;
+    public static final String HELLO_COMMAND = "HELLO";
+    // Upper bound for a single frame, protecting the server from absurd length prefixes.
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // Client -> server opcodes.
+    public static final byte OP_LOGIN = 1;
+    public static final byte OP_LOGOUT = 2;
+    public static final byte OP_LIST_ROOMS = 3;
+    public static final byte OP_JOIN_ROOM = 4;
+    public static final byte OP_SEND_MSG = 5;
+    public static final byte OP_WANT_TO_SEND_FILE = 6;
+    public static final byte OP_ACCEPT_FILE = 7;
+    public static final byte OP_REJECT_FILE = 8;
+    public static final byte OP_HISTORY = 9;
+    public static final byte OP_EDIT_MSG = 10;
+    public static final byte OP_DELETE_MSG = 11;
+    public static final byte OP_SEARCH = 12;
+    public static final byte OP_STATS = 13;
+
+    // Server -> client opcodes.
+    public static final byte OP_TEXT = 32;
+    // A message delivered to a room: the SEND_MSG fields, then the room name.
+    public static final byte OP_CHAT_MESSAGE = 33;
+    // One message of a history page or search result: the SEND_MSG fields.
+    public static final byte OP_HISTORY_MESSAGE = 34;
+    // Where the next history page starts: the room ID, then the cursor ("before:<n>" or "after:<n>").
+    public static final byte OP_HISTORY_MORE = 35;
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private BinaryCodec() {}
+
+    // The "HELLO::2" line a client sends to ask for the binary protocol.
+    public static String helloCommand() {
+        return HELLO_COMMAND + "::" + VERSION;
+    }
+
+    // --- Encoding -----------------------------------------------------------------
+
+    public static byte[] encodeLogin(String username) {
+        return new FrameBuilder(OP_LOGIN).writeString(username).toFrame();
+    }
+
+    public static byte[] encodeLogout() {
+        return new FrameBuilder(OP_LOGOUT).toFrame();
+    }
+
+    public static byte[] encodeListRooms() {
+        return new FrameBuilder(OP_LIST_ROOMS).toFrame();
+    }
+
+    public static byte[] encodeJoinRoom(UUID chatroomId) {
+        return new FrameBuilder(OP_JOIN_ROOM).writeUuid(chatroomId).toFrame();
+    }
+
+    public static byte[] encodeSendMessage(MessageModel message) {
+        return new FrameBuilder(OP_SEND_MSG).writeMessage(message).toFrame();
+    }
+
+    public static byte[] encodeWantToSendFile(String recipient, String filename, long fileSize) {
+        return new FrameBuilder(OP_WANT_TO_SEND_FILE).writeString(recipient).writeString(filename).writeVarLong(fileSize).toFrame();
+    }
+
+    public static byte[] encodeFileResponse(UUID transferId, boolean accepted) {
+        return new FrameBuilder(accepted ? OP_ACCEPT_FILE : OP_REJECT_FILE).writeUuid(transferId).toFrame();
+    }
+
+    // cursor is "" for the newest page, or "before:<n>" / "after:<n>" from a HISTORY_MORE line.
+    // A limit of 0 asks for the server's default page size.
+    public static byte[] encodeHistory(UUID chatroomId, String cursor, int limit) {
+        return new FrameBuilder(OP_HISTORY).writeUuid(chatroomId).writeString(cursor).writeVarLong(limit).toFrame();
+    }
+
+    public static byte[] encodeEditMessage(UUID messageId, String newContent) {
+        return new FrameBuilder(OP_EDIT_MSG).writeUuid(messageId).writeString(newContent).toFrame();
+    }
+
+    public static byte[] encodeDeleteMessage(UUID messageId) {
+        return new FrameBuilder(OP_DELETE_MSG).writeUuid(messageId).toFrame();
+    }
+
+    // Words are ANDed; a word ending in '*' matches as a prefix.
+    public static byte[] encodeSearch(UUID chatroomId, String query) {
+        return new FrameBuilder(OP_SEARCH).writeUuid(chatroomId).writeString(query).toFrame();
+    }
+
+    // Admin only; answered with text lines like the legacy STATS command.
+    public static byte[] encodeStats() {
+        return new FrameBuilder(OP_STATS).toFrame();
+    }
+
+    // Server messages are free-form lines; v2 carries them as UTF-8 without a size cap.
+    public static byte[] encodeText(String text) {
+        return new FrameBuilder(OP_TEXT).writeString(text).toFrame();
+    }
+
+    public static byte[] encodeChatMessage(MessageModel message, String roomName) {
+        return new FrameBuilder(OP_CHAT_MESSAGE).writeMessage(message).writeString(roomName).toFrame();
+    }
+
+    public static byte[] encodeHistoryMessage(MessageModel message) {
+        return new FrameBuilder(OP_HISTORY_MESSAGE).writeMessage(message).toFrame();
+    }
+
+    public static byte[] encodeHistoryMore(UUID chatroomId, String cursor) {
+        return new FrameBuilder(OP_HISTORY_MORE).writeUuid(chatroomId).writeString(cursor).toFrame();
+    }
+
+    // --- Decoding -----------------------------------------------------------------
+
+    // Reads one complete frame (opcode + payload) from a blocking stream.
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Frame(body);
+    }
+
+    public static void writeFrame(OutputStream out, byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
+
+    // Turns a SEND_MSG, CHAT_MESSAGE or HISTORY_MESSAGE frame back into a MessageModel without any
+    // string parsing. A CHAT_MESSAGE's room name follows and is read with frame.readString().
+    public static MessageModel decodeMessage(Frame frame) throws IOException {
+        UUID messageId = frame.readUuid();
+        long epochMillis = frame.readVarLong();
+        String type = frame.readString();
+        String sender = frame.readString();
+        UUID chatroomId = frame.readUuid();
+        String content = frame.readString();
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZONE);
+        return new MessageModel(messageId, timestamp, type, sender, chatroomId, content);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // A received frame. The read methods consume the payload front to back.
+    public static final class Frame {
+        private final byte[] body;
+        private int pos;
+
+        public Frame(byte[] body) {
+            this.body = body;
+            this.pos = 1;
+        }
+
+        public byte opcode() {
+            return body[0];
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                if (pos >= body.length) throw new EOFException("Truncated frame");
+                int b = body[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public long readLong() throws IOException {
+            if (pos + 8 > body.length) throw new EOFException("Truncated frame");
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (body[pos++] & 0xFF);
+            }
+            return value;
+        }
+
+        public UUID readUuid() throws IOException {
+            return new UUID(readLong(), readLong());
+        }
+
+        public String readString() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || pos + length > body.length) throw new EOFException("Truncated frame");
+            String value = new String(body, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return value;
+        }
+    }
+
+    // Assembles a frame and prefixes it with its varint length.
+    private static final class FrameBuilder {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+
+        FrameBuilder(byte opcode) {
+            body.write(opcode);
+        }
+
+        FrameBuilder writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                body.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            body.write((int) value);
+            return this;
+        }
+
+        FrameBuilder writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                body.write((int) (value >>> shift));
+            }
+            return this;
+        }
+
+        FrameBuilder writeUuid(UUID value) {
+            return writeLong(value.getMostSignificantBits()).writeLong(value.getLeastSignificantBits());
+        }
+
+        FrameBuilder writeMessage(MessageModel message) {
+            long epochMillis = message.timestamp.atZone(ZONE).toInstant().toEpochMilli();
+            return writeUuid(message.messageId)
+                    .writeVarLong(epochMillis)
+                    .writeString(message.type)
+                    .writeString(message.sender)
+                    .writeUuid(message.chatroomId)
+                    .writeString(message.content);
+        }
+
+        FrameBuilder writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            body.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] toFrame() {
+            int length = body.size();
+            int header = 1;
+            while ((length >>> (7 * header)) != 0) header++;
+            byte[] frame = new byte[header + length];
+            int value = length;
+            for (int i = 0; i < header; i++) {
+                frame[i] = (byte) ((value & 0x7F) | (i < header - 1 ? 0x80 : 0));
+                value >>>= 7;
+            }
+            byte[] bytes = body.toByteArray();
+            System.arraycopy(bytes, 0, frame, header, bytes.length);
+            return frame;
+        }
+    }
+}
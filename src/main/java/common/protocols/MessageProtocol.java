@@ -15,17 +15,27 @@ public class MessageProtocol {
 
     // Constructs a standard text message command.
     public String buildTextMessage(String sender, UUID chatroomId, String content) {
-        UUID messageId = UUID.randomUUID();
-        LocalDateTime timestamp = LocalDateTime.now();
-        // The structure for a message command is defined here.
-        return COMMAND_SEND_MSG + DELIMITER + messageId + DELIMITER + timestamp + DELIMITER + MSG_TYPE_TEXT + DELIMITER + sender + DELIMITER + chatroomId + DELIMITER + content;
+        return toCommand(createTextMessage(sender, chatroomId, content));
     }
 
     // Constructs a system message, which always has "SYSTEM" as the sender.
     public String buildSystemMessage(String content, UUID chatroomId) {
-        UUID messageId = UUID.randomUUID();
-        LocalDateTime timestamp = LocalDateTime.now();
-        return COMMAND_SEND_MSG + DELIMITER + messageId + DELIMITER + timestamp + DELIMITER + MSG_TYPE_SYSTEM + DELIMITER + "SYSTEM" + DELIMITER + chatroomId + DELIMITER + content;
+        return toCommand(createSystemMessage(content, chatroomId));
+    }
+
+    // Creates a new text message with a fresh ID and timestamp.
+    // Binary-protocol clients encode this directly instead of building a command string.
+    public MessageModel createTextMessage(String sender, UUID chatroomId, String content) {
+        return new MessageModel(UUID.randomUUID(), LocalDateTime.now(), MSG_TYPE_TEXT, sender, chatroomId, content);
+    }
+
+    public MessageModel createSystemMessage(String content, UUID chatroomId) {
+        return new MessageModel(UUID.randomUUID(), LocalDateTime.now(), MSG_TYPE_SYSTEM, "SYSTEM", chatroomId, content);
+    }
+
+    // The structure for a message command is defined here.
+    public String toCommand(MessageModel message) {
+        return COMMAND_SEND_MSG + DELIMITER + message.messageId + DELIMITER + message.timestamp + DELIMITER + message.type + DELIMITER + message.sender + DELIMITER + message.chatroomId + DELIMITER + message.content;
     }
     
     // Deconstructs a raw command string into a structured MessageModel object.
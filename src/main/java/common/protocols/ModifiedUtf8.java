@@ -0,0 +1,118 @@
+package common.protocols;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+// Encodes and decodes the length-prefixed "modified UTF-8" frames produced by
+// DataOutputStream.writeUTF and consumed by DataInputStream.readUTF.
+// Having this as a standalone codec lets non-blocking code work on raw buffers
+// while staying byte-for-byte compatible with the stream-based clients.
+public final class ModifiedUtf8 {
+    // writeUTF stores the payload length in an unsigned 16-bit header.
+    public static final int HEADER_LENGTH = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 65535;
+
+    private ModifiedUtf8() {}
+
+    // Returns the number of payload bytes the string occupies once encoded.
+    public static int encodedLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) length += 1;
+            else if (c <= 0x07FF) length += 2;
+            else length += 3;
+        }
+        return length;
+    }
+
+    // Builds a complete frame (header + payload), identical to what writeUTF would send.
+    public static byte[] encodeFrame(String text) throws UTFDataFormatException {
+        int length = encodedLength(text);
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        int pos = HEADER_LENGTH;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                frame[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                frame[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return frame;
+    }
+
+    // Decodes 'length' payload bytes starting at the buffer's current position.
+    public static String decode(ByteBuffer in, int length) throws UTFDataFormatException {
+        if (in.hasArray()) {
+            String text = decode(in.array(), in.arrayOffset() + in.position(), length);
+            in.position(in.position() + length);
+            return text;
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (in.position() >= end) throw malformed();
+                int b2 = in.get() & 0xFF;
+                if ((b2 & 0xC0) != 0x80) throw malformed();
+                chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                if (in.position() + 1 >= end) throw malformed();
+                int b2 = in.get() & 0xFF;
+                int b3 = in.get() & 0xFF;
+                if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) throw malformed();
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+            } else {
+                throw malformed();
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    // Decodes a payload held in a byte array.
+    public static String decode(byte[] bytes, int offset, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            int b = bytes[pos++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (pos >= end) throw malformed();
+                int b2 = bytes[pos++] & 0xFF;
+                if ((b2 & 0xC0) != 0x80) throw malformed();
+                chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                if (pos + 1 >= end) throw malformed();
+                int b2 = bytes[pos++] & 0xFF;
+                int b3 = bytes[pos++] & 0xFF;
+                if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) throw malformed();
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+            } else {
+                throw malformed();
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static UTFDataFormatException malformed() {
+        return new UTFDataFormatException("Malformed modified UTF-8 input");
+    }
+}
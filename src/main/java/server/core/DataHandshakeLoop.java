@@ -0,0 +1,183 @@
+package server.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import Services.DataTransferManager;
+import common.protocols.ModifiedUtf8;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+
+// Reads the transfer-ID handshake of new data-port connections without blocking.
+// The accept thread only accepts and hands sockets over, so a client that connects and
+// never sends its ID can no longer hold up anybody else's file transfer.
+public class DataHandshakeLoop implements Runnable {
+    // writeUTF of a UUID string is 38 bytes; anything much larger is not a valid handshake.
+    private static final int MAX_HANDSHAKE_PAYLOAD = 64;
+    private static final long REAP_INTERVAL_MILLIS = 1000;
+
+    private final String name;
+    private final Selector selector;
+    private final long handshakeTimeoutMillis;
+    private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+    // Handshakes in arrival order. Deadlines grow monotonically, so expiry only looks at the head.
+    private final ArrayDeque<Handshake> byDeadline = new ArrayDeque<>();
+    private long nextReapAt = 0;
+
+    public DataHandshakeLoop(String name, long handshakeTimeoutMillis) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        // At least 1 ms: the loop selects with this timeout, and select(0) would wait forever.
+        this.handshakeTimeoutMillis = Math.max(1, handshakeTimeoutMillis);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Called by the accept thread. Never blocks.
+    public void submit(SocketChannel channel) {
+        incoming.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Logger.info(LogEvent.SERVER_LIFECYCLE, "Data handshake loop " + name + " started (timeout " + handshakeTimeoutMillis + " ms)");
+        List<Handshake> completed = new ArrayList<>();
+        while (true) {
+            try {
+                selector.select(Math.min(handshakeTimeoutMillis, REAP_INTERVAL_MILLIS));
+                registerIncoming();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handshake handshake = (Handshake) key.attachment();
+                    if (key.isValid() && key.isReadable() && handshake.read()) {
+                        key.cancel();
+                        completed.add(handshake);
+                    }
+                }
+                if (!completed.isEmpty()) {
+                    // Flush the cancelled keys so the channels can be switched back to blocking mode
+                    // for whichever relay picks them up.
+                    selector.selectNow();
+                    for (Handshake handshake : completed) handOver(handshake);
+                    completed.clear();
+                }
+                expireHandshakes();
+            } catch (IOException e) {
+                Logger.error(LogEvent.SYSTEM_ERROR, "Selector failure in " + name, e);
+            }
+        }
+    }
+
+    private void registerIncoming() {
+        SocketChannel channel;
+        long deadline = System.currentTimeMillis() + handshakeTimeoutMillis;
+        while ((channel = incoming.poll()) != null) {
+            Handshake handshake = new Handshake(channel, deadline);
+            try {
+                channel.configureBlocking(false);
+                handshake.key = channel.register(selector, SelectionKey.OP_READ, handshake);
+                byDeadline.add(handshake);
+            } catch (IOException e) {
+                handshake.fail("could not register: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handOver(Handshake handshake) {
+        try {
+            handshake.channel.configureBlocking(true);
+            DataTransferManager.handleNewDataConnection(handshake.transferId, handshake.channel.socket());
+        } catch (IOException e) {
+            handshake.fail("could not hand over: " + e.getMessage());
+        }
+    }
+
+    private void expireHandshakes() {
+        long now = System.currentTimeMillis();
+        Handshake head;
+        while ((head = byDeadline.peek()) != null && (head.done || head.deadline <= now)) {
+            byDeadline.poll();
+            if (!head.done) {
+                head.key.cancel();
+                head.fail("no transfer ID within " + handshakeTimeoutMillis + " ms");
+            }
+        }
+        if (now >= nextReapAt) {
+            DataTransferManager.reapExpiredTransfers();
+            nextReapAt = now + REAP_INTERVAL_MILLIS;
+        }
+    }
+
+    // The bytes of one writeUTF(transferId) frame as they trickle in.
+    private static final class Handshake {
+        final SocketChannel channel;
+        final long deadline;
+        final ByteBuffer buffer = ByteBuffer.allocate(ModifiedUtf8.HEADER_LENGTH);
+        SelectionKey key;
+        ByteBuffer payload;
+        UUID transferId;
+        boolean done;
+
+        Handshake(SocketChannel channel, long deadline) {
+            this.channel = channel;
+            this.deadline = deadline;
+        }
+
+        // Returns true once a valid, expected transfer ID has been read.
+        boolean read() {
+            try {
+                ByteBuffer target = payload != null ? payload : buffer;
+                if (channel.read(target) < 0) {
+                    fail("connection closed during handshake");
+                    return false;
+                }
+                if (payload == null) {
+                    if (buffer.hasRemaining()) return false;
+                    int length = ((buffer.get(0) & 0xFF) << 8) | (buffer.get(1) & 0xFF);
+                    if (length == 0 || length > MAX_HANDSHAKE_PAYLOAD) {
+                        fail("invalid handshake length " + length);
+                        return false;
+                    }
+                    payload = ByteBuffer.allocate(length);
+                    channel.read(payload);
+                }
+                if (payload.hasRemaining()) return false;
+                payload.flip();
+                transferId = UUID.fromString(ModifiedUtf8.decode(payload, payload.remaining()));
+                if (!DataTransferManager.isExpectedTransfer(transferId)) {
+                    fail("unknown transfer ID " + transferId);
+                    return false;
+                }
+                done = true;
+                return true;
+            } catch (IOException | IllegalArgumentException e) {
+                fail(e.getMessage());
+                return false;
+            }
+        }
+
+        void fail(String reason) {
+            done = true;
+            if (key != null) key.cancel();
+            Logger.warning(LogEvent.FILE_TRANSFER, "Rejected data connection from " + channel.socket().getInetAddress() + ": " + reason);
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package server.core;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -94,46 +95,120 @@ public class EmojiConverter {
         emojiMap.put(":exclamation:", "❗");
     }
     
+    // Every shortcut compiled into one character trie, so a message is rewritten in a single pass.
+    private static final Node TRIE = buildTrie();
+    // The trie's first level indexed by character. Every shortcut starts with an ASCII character,
+    // so most positions of a message are rejected with one array read.
+    private static final Node[] FIRST = new Node[128];
+
+    static {
+        for (int i = 0; i < TRIE.keys.length; i++) {
+            FIRST[TRIE.keys[i]] = TRIE.children[i];
+        }
+    }
+
+    // One trie node. Children are kept in small parallel arrays; a node has only a few of them.
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        // The emoji for the shortcut ending here, or null.
+        String emoji;
+        // True for :name: shortcuts, which only match as a whole word.
+        boolean named;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node existing = child(c);
+            if (existing != null) return existing;
+            Node node = new Node();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            children[children.length - 1] = node;
+            return node;
+        }
+    }
+
+    private static Node buildTrie() {
+        Node root = new Node();
+        for (Map.Entry<String, String> entry : emojiMap.entrySet()) {
+            String shortcut = entry.getKey();
+            Node node = root;
+            for (int i = 0; i < shortcut.length(); i++) {
+                node = node.addChild(shortcut.charAt(i));
+            }
+            node.emoji = entry.getValue();
+            node.named = isNamed(shortcut);
+        }
+        return root;
+    }
+
+    // Replaces emoji shortcuts with their Unicode equivalents in one left-to-right pass.
+    // At each position the longest shortcut that applies wins. Emoticons such as ":)" match anywhere;
+    // named shortcuts such as ":smile:" only when no letter, digit or underscore touches them.
+    // Returns the same String instance, without allocating, when there is nothing to replace.
     public static String convert(String text) {
-        if (text == null || text.trim().isEmpty()) {
+        if (text == null || text.isEmpty()) {
             return text;
         }
-        
-        String result = text;
-        
-        // Replace all emoji shortcuts with their Unicode equivalents
-        for (Map.Entry<String, String> entry : emojiMap.entrySet()) {
-            // Use regex word boundaries for named emojis to avoid partial matches
-            if (entry.getKey().startsWith(":") && entry.getKey().endsWith(":") && entry.getKey().length() > 2) {
-                result = result.replaceAll("\\b" + escapeRegex(entry.getKey()) + "\\b", entry.getValue());
-            } else {
-                // For ASCII emoticons, replace all occurrences
-                result = result.replace(entry.getKey(), entry.getValue());
+
+        StringBuilder result = null;
+        int copied = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            Node match = null;
+            int matchEnd = i;
+            char first = text.charAt(i);
+            Node node = first < FIRST.length ? FIRST[first] : null;
+            for (int j = i + 1; node != null; j++) {
+                if (node.emoji != null && (!node.named || isWordBoundary(text, i, j))) {
+                    match = node;
+                    matchEnd = j;
+                }
+                node = j < length ? node.child(text.charAt(j)) : null;
             }
+            if (match == null) {
+                i++;
+                continue;
+            }
+            if (result == null) result = new StringBuilder(length + 16);
+            result.append(text, copied, i).append(match.emoji);
+            copied = matchEnd;
+            i = matchEnd;
         }
-        
-        return result;
+        if (result == null) {
+            return text;
+        }
+        return result.append(text, copied, length).toString();
     }
-   
-    private static String escapeRegex(String text) {
-        return text.replaceAll("([\\[\\](){}*+?^$|\\\\])", "\\\\$1");
+
+    private static boolean isNamed(String shortcut) {
+        return shortcut.startsWith(":") && shortcut.endsWith(":") && shortcut.length() > 2;
+    }
+
+    // True if text[start, end) is not glued to a word character on either side.
+    private static boolean isWordBoundary(String text, int start, int end) {
+        return (start == 0 || !isWordChar(text.charAt(start - 1)))
+                && (end == text.length() || !isWordChar(text.charAt(end)));
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
     }
    
     public static Map<String, String> getSupportedEmojis() {
         return new HashMap<>(emojiMap);
     }
     
+    // True if convert would replace anything in the text.
     public static boolean containsEmojiShortcuts(String text) {
-        if (text == null || text.trim().isEmpty()) {
-            return false;
-        }
-        
-        for (String shortcut : emojiMap.keySet()) {
-            if (text.contains(shortcut)) {
-                return true;
-            }
-        }
-        
-        return false;
+        return text != null && !text.isEmpty() && convert(text) != text;
     }
 }
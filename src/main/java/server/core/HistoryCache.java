@@ -0,0 +1,127 @@
+package server.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.models.ChatRoom;
+import common.models.MessageModel;
+import common.protocols.BinaryCodec;
+import common.protocols.ModifiedUtf8;
+import server.storage.RoomHistory;
+
+// Renders history pages as ready-to-queue frames. The page sent on JOIN_ROOM is additionally
+// cached per room and protocol version.
+// Joining a quiet room then costs a single queued byte array instead of one encode and one
+// send per historical line. An entry is rebuilt the first time it is needed after the room changed.
+final class HistoryCache {
+    private static final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final long modCount;
+        final int limit;
+        volatile byte[] legacyBlock;
+        volatile byte[] binaryBlock;
+
+        Entry(long modCount, int limit) {
+            this.modCount = modCount;
+            this.limit = limit;
+        }
+    }
+
+    private HistoryCache() {}
+
+    // Returns the header, the last 'limit' messages and the footer as consecutive frames in the
+    // given protocol version. The array is shared; callers must not modify it.
+    // A "HISTORY_MORE::<roomId>::before:<cursor>" line follows when older messages exist.
+    static byte[] historyBlock(ChatRoom room, RoomHistory history, int limit, int protocolVersion) throws IOException {
+        // Read the version before the data: if the room changes meanwhile, the entry is merely
+        // considered stale one time too many, never fresh when it is not.
+        long modCount = history.modCount();
+        Entry entry = entries.get(room.getId());
+        if (entry == null || entry.modCount != modCount || entry.limit != limit) {
+            entry = new Entry(modCount, limit);
+            entries.put(room.getId(), entry);
+        }
+        boolean binary = protocolVersion >= BinaryCodec.VERSION;
+        byte[] block = binary ? entry.binaryBlock : entry.legacyBlock;
+        if (block == null) {
+            block = render(room, "--- Displaying history for " + room.getRoomName() + " ---",
+                    "... No messages in this room yet ...", history.latest(limit), false, binary);
+            if (binary) entry.binaryBlock = block; else entry.legacyBlock = block;
+        }
+        return block;
+    }
+
+    // Renders the reply to a HISTORY request. Not cached: cursors make every page different.
+    // 'forward' pages continue towards newer messages, all others towards older ones.
+    static byte[] pageBlock(ChatRoom room, RoomHistory.Page page, boolean forward, int protocolVersion) throws IOException {
+        return render(room, "--- History for " + room.getRoomName() + " ---",
+                "... No more messages ...", page, forward, protocolVersion >= BinaryCodec.VERSION);
+    }
+
+    // Renders the reply to a SEARCH request: the matches oldest first, like a history page.
+    static byte[] searchBlock(ChatRoom room, String query, List<MessageModel> newestFirst, int protocolVersion) throws IOException {
+        boolean binary = protocolVersion >= BinaryCodec.VERSION;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + newestFirst.size() * 64);
+        writeLine(out, "--- Search results for \"" + query + "\" in " + room.getRoomName() + " ---", binary);
+        if (newestFirst.isEmpty()) {
+            writeLine(out, "... No matching messages ...", binary);
+        }
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            writeMessage(out, newestFirst.get(i), binary);
+        }
+        writeLine(out, "--- End of search results ---", binary);
+        return out.toByteArray();
+    }
+
+    private static byte[] render(ChatRoom room, String header, String emptyLine, RoomHistory.Page page, boolean forward, boolean binary) throws IOException {
+        List<MessageModel> messages = page.messages;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + messages.size() * 64);
+        writeLine(out, header, binary);
+        if (messages.isEmpty()) {
+            writeLine(out, emptyLine, binary);
+        } else {
+            for (MessageModel msg : messages) {
+                writeMessage(out, msg, binary);
+            }
+        }
+        writeLine(out, "--- End of history ---", binary);
+        if (forward && page.newerCursor >= 0) {
+            writeMore(out, room, "after:" + page.newerCursor, binary);
+        } else if (!forward && page.olderCursor >= 0) {
+            writeMore(out, room, "before:" + page.olderCursor, binary);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeMore(ByteArrayOutputStream out, ChatRoom room, String cursor, boolean binary) throws IOException {
+        if (binary) {
+            out.write(BinaryCodec.encodeHistoryMore(room.getId(), cursor));
+        } else {
+            writeLine(out, "HISTORY_MORE::" + room.getId() + "::" + cursor, false);
+        }
+    }
+
+    // Binary clients get the message itself; legacy clients a "[sender]: content" line.
+    private static void writeMessage(ByteArrayOutputStream out, MessageModel msg, boolean binary) throws IOException {
+        if (binary) {
+            out.write(BinaryCodec.encodeHistoryMessage(msg));
+            return;
+        }
+        try {
+            writeLine(out, "[" + msg.sender + "]: " + msg.content, false);
+        } catch (UTFDataFormatException e) {
+            // Longer than a legacy frame can carry (possible since binary clients can send it).
+            writeLine(out, "[" + msg.sender + "]: (message too long for this client)", false);
+        }
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line, boolean binary) throws IOException {
+        out.write(binary ? BinaryCodec.encodeText(line) : ModifiedUtf8.encodeFrame(line));
+    }
+}
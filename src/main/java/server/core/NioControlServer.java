@@ -0,0 +1,55 @@
+package server.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import Services.LoginService;
+import common.models.Datahandler;
+import server.pipeline.MessagePipeline;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+
+// An alternative control-port engine built on java.nio selectors.
+// Instead of parking one pool thread per client in readUTF(), a handful of event loops
+// multiplex every connection, so idle clients cost a few hundred bytes rather than a thread.
+public class NioControlServer {
+    private final int port;
+    private final NioEventLoop[] loops;
+    private int nextLoop = 0;
+
+    public NioControlServer(int port, int loopCount, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) throws IOException {
+        this.port = port;
+        this.loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("control-loop-" + i, loginService, datahandler, pipeline);
+        }
+    }
+
+    // Starts the event loops and then blocks the calling thread accepting new connections.
+    public void start() {
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            Logger.info(LogEvent.SERVER_LIFECYCLE, "Control server (nio, " + loops.length + " event loops) is live and listening on port: " + port);
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                Logger.info(LogEvent.USER_SESSION, "New control connection from: " + channel.socket().getInetAddress());
+                // Connections are spread round-robin over the loops.
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            Logger.error(LogEvent.SYSTEM_ERROR, "Server error: Could not start on control port " + port, e);
+            e.printStackTrace();
+        } finally {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+}
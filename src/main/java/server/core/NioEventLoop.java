@@ -0,0 +1,163 @@
+package server.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import Services.LoginService;
+import common.models.Datahandler;
+import server.pipeline.MessagePipeline;
+import common.protocols.ModifiedUtf8;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+
+// A single selector thread that serves many control connections.
+// All reads, frame decoding, command dispatch and socket writes for its sessions happen here,
+// so a session's state is only ever touched by one thread.
+public class NioEventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final LoginService loginService;
+    private final Datahandler datahandler;
+    private final MessagePipeline pipeline;
+    // Work handed over from other threads (new connections, flush requests, closes).
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // One read buffer shared by every session on this loop; large enough for a full writeUTF frame.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(ModifiedUtf8.HEADER_LENGTH + ModifiedUtf8.MAX_PAYLOAD_LENGTH);
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.loginService = loginService;
+        this.datahandler = datahandler;
+        this.pipeline = pipeline;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        this.thread = t;
+        t.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // Hands a freshly accepted channel to this loop.
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            NioSession session = new NioSession(channel, this);
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+                ServerHandler handler = new ServerHandler(session, loginService, datahandler, pipeline);
+                session.attach(handler, key);
+                handler.onConnect();
+            } catch (IOException e) {
+                Logger.error(LogEvent.SYSTEM_ERROR, "Could not register control connection on " + name, e);
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    // Runs a task on the loop thread, directly if we are already on it.
+    void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    // Called by a session after it queued output. Coalesces requests from other threads.
+    void requestFlush(NioSession session) {
+        if (Thread.currentThread() == thread) {
+            flush(session);
+        } else if (session.flushScheduled.compareAndSet(false, true)) {
+            tasks.add(() -> {
+                session.flushScheduled.set(false);
+                flush(session);
+            });
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        Logger.info(LogEvent.SERVER_LIFECYCLE, "Event loop " + name + " started");
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key.isReadable()) read(session);
+                    if (key.isValid() && key.isWritable()) flush(session);
+                }
+            } catch (IOException e) {
+                Logger.error(LogEvent.SYSTEM_ERROR, "Selector failure in " + name, e);
+            } catch (RuntimeException e) {
+                // Per-session errors are handled in read(); this keeps the loop alive for anything else.
+                Logger.error(LogEvent.SYSTEM_ERROR, "Unexpected error in " + name, e);
+            }
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+        Logger.info(LogEvent.SERVER_LIFECYCLE, "Event loop " + name + " stopped");
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.error(LogEvent.SYSTEM_ERROR, "Task failed in " + name, e);
+            }
+        }
+    }
+
+    private void read(NioSession session) {
+        try {
+            readBuffer.clear();
+            int n = session.channel().read(readBuffer);
+            if (n < 0) {
+                session.close();
+                return;
+            }
+            readBuffer.flip();
+            session.onBytes(readBuffer);
+        } catch (IOException e) {
+            // Either the peer reset the connection or it sent a malformed frame.
+            System.err.println("Control connection to client " + session.getId() + " lost: " + e.getMessage());
+            session.close();
+        } catch (RuntimeException e) {
+            // A bug triggered by one client's input must not take the whole loop down with it.
+            Logger.error(LogEvent.SYSTEM_ERROR, "Unexpected error handling client " + session.getId() + " in " + name + "; closing its connection", e);
+            session.close();
+        }
+    }
+
+    private void flush(NioSession session) {
+        if (!session.isOpen()) return;
+        try {
+            session.flush();
+        } catch (IOException e) {
+            System.err.println("Control connection to client " + session.getId() + " lost: " + e.getMessage());
+            session.close();
+        }
+    }
+}
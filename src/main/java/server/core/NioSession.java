@@ -0,0 +1,240 @@
+package server.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Services.ClientSession;
+import Services.OutboundQueue;
+import common.protocols.BinaryCodec;
+import common.protocols.ModifiedUtf8;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+
+// A ClientSession served by an NioEventLoop instead of a dedicated thread.
+// An idle session owns no buffers at all: reads go through the loop's shared buffer,
+// and a per-session array is only allocated while a frame is split across reads.
+// The loop thread is the session's single writer; it drains the bounded outbound queue.
+public class NioSession implements ClientSession {
+    private final UUID id;
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final String remoteAddress;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // Set when a flush has been handed to the loop but not yet run.
+    final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final OutboundQueue outbound = OutboundQueue.fromConfig();
+    // The frame currently being written, kept outside the queue so overflow never drops half a frame.
+    private ByteBuffer current;
+
+    private ServerHandler handler;
+    private SelectionKey key;
+
+    private volatile int protocolVersion = BinaryCodec.LEGACY_VERSION;
+    // Held while a frame is encoded and queued, and while HELLO switches the version.
+    private final ReentrantLock versionLock = new ReentrantLock();
+
+    // Holds the bytes of a frame that has only partially arrived; null between frames.
+    private byte[] partial;
+    private int partialFill;
+    private boolean partialIsHeader;
+    // Binary (v2) framing state: the varint length being assembled, then the frame body.
+    private int binaryLength;
+    private int binaryShift;
+
+    NioSession(SocketChannel channel, NioEventLoop loop) {
+        this.id = UUID.randomUUID();
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    void attach(ServerHandler handler, SelectionKey key) {
+        this.handler = handler;
+        this.key = key;
+    }
+
+    @Override
+    public UUID getId() { return id; }
+
+    @Override
+    public void send(String message) throws IOException {
+        sendEncoded(version -> version >= BinaryCodec.VERSION ? BinaryCodec.encodeText(message) : ModifiedUtf8.encodeFrame(message));
+    }
+
+    @Override
+    public void sendEncoded(FrameEncoder encoder) throws IOException {
+        versionLock.lock();
+        try {
+            sendFrame(encoder.encode(protocolVersion));
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection closed for client " + id);
+        }
+        if (!outbound.offer(frame)) {
+            Logger.warning(LogEvent.USER_SESSION, "Disconnecting slow consumer " + id + ": outbound queue full (" + outbound.capacity() + " frames)");
+            close();
+            throw new IOException("Outbound queue overflow for client " + id);
+        }
+        loop.requestFlush(this);
+    }
+
+    // Closing is idempotent. The handler's cleanup always runs on the loop thread.
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            try { channel.close(); } catch (IOException e) { /* Ignored */ }
+            loop.execute(() -> { if (handler != null) handler.closeConnection(); });
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    @Override
+    public void switchProtocol(String reply, int version) throws IOException {
+        versionLock.lock();
+        try {
+            send(reply);
+            protocolVersion = version;
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.depth() + (current != null ? 1 : 0);
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return outbound.droppedCount();
+    }
+
+    SocketChannel channel() { return channel; }
+
+    // Splits the freshly read bytes into frames and hands each one to the handler.
+    // The version is re-checked per frame because HELLO switches it mid-stream.
+    void onBytes(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && !closed.get()) {
+            if (protocolVersion >= BinaryCodec.VERSION) {
+                decodeBinary(in);
+                continue;
+            }
+            if (partial == null) {
+                if (in.remaining() >= ModifiedUtf8.HEADER_LENGTH) {
+                    int length = ((in.get(in.position()) & 0xFF) << 8) | (in.get(in.position() + 1) & 0xFF);
+                    if (in.remaining() >= ModifiedUtf8.HEADER_LENGTH + length) {
+                        // Fast path: the whole frame is already in the shared buffer.
+                        in.position(in.position() + ModifiedUtf8.HEADER_LENGTH);
+                        handler.handleClientMessage(ModifiedUtf8.decode(in, length));
+                        continue;
+                    }
+                    partial = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+                    partialIsHeader = false;
+                } else {
+                    partial = new byte[ModifiedUtf8.HEADER_LENGTH];
+                    partialIsHeader = true;
+                }
+                partialFill = 0;
+            }
+
+            int n = Math.min(in.remaining(), partial.length - partialFill);
+            in.get(partial, partialFill, n);
+            partialFill += n;
+            if (partialFill < partial.length) {
+                return; // Wait for more bytes.
+            }
+
+            int length = ((partial[0] & 0xFF) << 8) | (partial[1] & 0xFF);
+            if (partialIsHeader && length > 0) {
+                // Header complete; grow the holding array to fit the payload.
+                byte[] frame = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+                frame[0] = partial[0];
+                frame[1] = partial[1];
+                partial = frame;
+                partialIsHeader = false;
+                continue;
+            }
+            byte[] frame = partial;
+            partial = null;
+            handler.handleClientMessage(ModifiedUtf8.decode(frame, ModifiedUtf8.HEADER_LENGTH, length));
+        }
+    }
+
+    // Consumes bytes of at most one binary frame: first the varint length, then the body.
+    private void decodeBinary(ByteBuffer in) throws IOException {
+        if (partial == null) {
+            while (in.hasRemaining()) {
+                int b = in.get();
+                binaryLength |= (b & 0x7F) << binaryShift;
+                binaryShift += 7;
+                if ((b & 0x80) == 0) {
+                    int length = binaryLength;
+                    binaryLength = 0;
+                    binaryShift = 0;
+                    if (length < 1 || length > BinaryCodec.MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    partial = new byte[length];
+                    partialFill = 0;
+                    break;
+                }
+                if (binaryShift >= 35) throw new IOException("Malformed frame length");
+            }
+            if (partial == null) return;
+        }
+        int n = Math.min(in.remaining(), partial.length - partialFill);
+        in.get(partial, partialFill, n);
+        partialFill += n;
+        if (partialFill == partial.length) {
+            byte[] body = partial;
+            partial = null;
+            handler.handleBinaryFrame(new BinaryCodec.Frame(body));
+        }
+    }
+
+    // Writes as much queued output as the socket accepts. Runs on the loop thread only.
+    void flush() throws IOException {
+        while (true) {
+            if (current == null) {
+                byte[] frame = outbound.poll();
+                if (frame == null) break;
+                current = ByteBuffer.wrap(frame);
+            }
+            channel.write(current);
+            if (current.hasRemaining()) {
+                // The socket buffer is full; resume when the channel becomes writable.
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            current = null;
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+}
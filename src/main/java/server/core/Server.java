@@ -1,19 +1,26 @@
 package server.core;
 
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.UUID;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import Services.DataTransferManager;
 import Services.LoginService;
+import Services.SocketSession;
 import Services.ThreadExecutorService;
 import Services.UserHandler;
 import common.models.Datahandler;
 
+import server.pipeline.MessagePipeline;
+import server.storage.MessageLog;
+import server.storage.UserStore;
 import server.utils.Logger;
 import server.utils.Logger.LogEvent;
+import server.utils.Metrics;
+import server.utils.ServerConfig;
 
 // The main entry point for the chat server application.
 // This class is responsible for initializing services and listening for client connections.
@@ -23,15 +30,21 @@ public class Server {
     private final ThreadExecutorService threadPool;
     private final LoginService loginService;
     private final Datahandler datahandler;
+    private final MessagePipeline pipeline;
 
     // The constructor uses dependency injection, receiving services from the main method.
     // This makes the server more modular and easier to test.
-    public Server(int controlPort, int dataPort, LoginService loginService, Datahandler datahandler) {
+    public Server(int controlPort, int dataPort, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) {
         this.controlPort = controlPort;
         this.dataPort = dataPort;
-        this.threadPool = new ThreadExecutorService(Runtime.getRuntime().availableProcessors());
+        // "-Dchat.threads=virtual" runs each ServerHandler session on its own virtual thread (JDK 21+).
+        ThreadExecutorService.ExecutionMode mode = ThreadExecutorService.parseMode(ServerConfig.getString("chat.threads", "platform"));
+        this.threadPool = new ThreadExecutorService(Runtime.getRuntime().availableProcessors(), mode);
+        DataTransferManager.setThreadExecutor(threadPool);
+        SocketSession.setThreadExecutor(threadPool);
         this.loginService = loginService; 
         this.datahandler = datahandler;  
+        this.pipeline = pipeline;
     }
 
     public void start() {
@@ -39,7 +52,23 @@ public class Server {
         new Thread(this::listenForDataConnections).start();
         
         // The main thread is used for listening to control connections.
-        listenForControlConnections();
+        // "-Dchat.engine=nio" swaps the thread-per-client listener for the selector-based engine.
+        String engine = ServerConfig.getString("chat.engine", "blocking");
+        if ("nio".equalsIgnoreCase(engine)) {
+            listenForControlConnectionsNio();
+        } else {
+            listenForControlConnections();
+        }
+    }
+
+    // Serves the control port with a few selector event loops instead of one thread per client.
+    private void listenForControlConnectionsNio() {
+        int loops = ServerConfig.getInt("chat.nio.loops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        try {
+            new NioControlServer(controlPort, loops, loginService, datahandler, pipeline).start();
+        } catch (IOException e) {
+            Logger.error(LogEvent.SYSTEM_ERROR, "Server error: Could not open event loops for control port " + controlPort, e);
+        }
     }
 
     // Listens for incoming client connections on the control port.
@@ -50,7 +79,7 @@ public class Server {
                 Socket socket = serverSocket.accept();
                 Logger.info(LogEvent.USER_SESSION,("New control connection from: " + socket.getInetAddress()));
                 // Each new connection is handed off to a ServerHandler in the thread pool.
-                threadPool.addJob(new ServerHandler(socket, loginService, datahandler));
+                threadPool.addJob(new ServerHandler(socket, loginService, datahandler, pipeline));
             }
         } catch (IOException e) {
             Logger.error(LogEvent.SYSTEM_ERROR,"Server error: Could not start on control port " + controlPort, e);
@@ -59,24 +88,22 @@ public class Server {
     }
 
     // Listens for incoming client connections on the dedicated data port for file transfers.
+    // This thread only accepts; the transfer-ID handshake is read by non-blocking handshake loops.
     private void listenForDataConnections() {
-        try (ServerSocket dataSocket = new ServerSocket(dataPort)) {
+        // A ServerSocketChannel is used so the accepted sockets expose SocketChannels,
+        // which the handshake loops and the relays work with.
+        try (ServerSocketChannel dataChannel = ServerSocketChannel.open()) {
+            dataChannel.bind(new InetSocketAddress(dataPort), ServerConfig.getInt("chat.data.backlog", 1024));
+            DataHandshakeLoop[] handshakeLoops = startHandshakeLoops();
+            int nextLoop = 0;
             Logger.info(LogEvent.SERVER_LIFECYCLE,"Data server is live and listening on port: " + dataPort);
             while (true) {
-                Socket socket = dataSocket.accept();
-                Logger.info(LogEvent.FILE_TRANSFER,"New data connection from: " + socket.getInetAddress());
-
+                SocketChannel channel = dataChannel.accept();
+                Logger.info(LogEvent.FILE_TRANSFER,"New data connection from: " + channel.socket().getInetAddress());
                 // A client connecting to the data port must immediately send its unique transfer ID
-                // to be paired with its counterpart.
-                try {
-                    DataInputStream dataIn = new DataInputStream(socket.getInputStream());
-                    UUID transferId = UUID.fromString(dataIn.readUTF());
-            
-                    DataTransferManager.handleNewDataConnection(transferId, socket);
-                } catch (IOException e) {
-                    Logger.error(LogEvent.SYSTEM_ERROR,"Error handling new data connection: " + e.getMessage(), e);
-                    try { socket.close(); } catch (IOException ignored) {}
-                }
+                // to be paired with its counterpart. That read happens on a handshake loop.
+                handshakeLoops[nextLoop].submit(channel);
+                nextLoop = (nextLoop + 1) % handshakeLoops.length;
             }
         } catch (IOException e) {
             Logger.error(LogEvent.SYSTEM_ERROR,"Server error: Could not start on data port " + dataPort, e);
@@ -84,15 +111,51 @@ public class Server {
         }
     }
 
+    private DataHandshakeLoop[] startHandshakeLoops() throws IOException {
+        int count = Math.max(1, ServerConfig.getInt("chat.data.handshakeLoops", 1));
+        long timeoutMillis = ServerConfig.getLong("chat.data.handshakeTimeoutMs", 5000);
+        DataHandshakeLoop[] loops = new DataHandshakeLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new DataHandshakeLoop("data-handshake-" + i, timeoutMillis);
+            loops[i].start();
+        }
+        return loops;
+    }
+
     // Application entry point.
     public static void main(String[] args) {
         // Initialize all required services here.
-        UserHandler userHandler = new UserHandler();
+        UserHandler userHandler;
+        Datahandler datahandler;
+        MessageLog messageLog = null;
+        if ("memory".equalsIgnoreCase(ServerConfig.getString("chat.store", "log"))) {
+            userHandler = new UserHandler();
+            datahandler = new Datahandler();
+        } else {
+            // Registered users are loaded from their snapshot plus the changes logged since.
+            UserStore userStore = UserStore.fromConfig();
+            userHandler = new UserHandler(userStore);
+            Runtime.getRuntime().addShutdownHook(new Thread(userStore::close, "user-store-shutdown"));
+            // Message history is journaled to disk and replayed on start-up.
+            messageLog = MessageLog.fromConfig();
+            datahandler = new Datahandler(messageLog);
+        }
+
+        // The stages each chat message goes through; see -Dchat.pipeline.
+        MessagePipeline pipeline = MessagePipeline.fromConfig(datahandler);
+        // Shutdown hooks run concurrently, so one hook drains the pipeline before the journal closes.
+        MessageLog journal = messageLog;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            pipeline.close();
+            if (journal != null) journal.close();
+        }, "message-log-shutdown"));
+
         LoginService loginService = new LoginService(userHandler);
-        Datahandler datahandler = new Datahandler();
+        // Refreshes metric rates and writes the periodic dump; see -Dchat.metrics.*.
+        Metrics.start();
 
         // Inject the services into the server instance.
-        Server server = new Server(5010, 5011, loginService, datahandler);
+        Server server = new Server(5010, 5011, loginService, datahandler, pipeline);
         server.start();
     }
 }
\ No newline at end of file
@@ -1,28 +1,39 @@
 package server.core;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 import Services.ChatroomManager;
 import Services.ClientManager;
+import Services.ClientSession;
 import Services.DataTransferManager;
 import Services.LoginService;
+import Services.SocketSession;
 import common.models.ChatRoom;
 import common.models.Datahandler;
 import common.models.MessageModel;
 import common.models.User;
-import common.protocols.MessageProtocol;
+import common.protocols.BinaryCodec;
+import server.pipeline.MessageContext;
+import server.pipeline.MessagePipeline;
+import server.pipeline.ValidateStage;
+import server.storage.RoomHistory;
+import server.utils.LatencyHistogram;
 import server.utils.Logger;
+import server.utils.Metrics;
+import server.utils.RateLimiter;
+import server.utils.ServerConfig;
+import server.utils.TokenBucket;
 
 
 // Each instance of this class handles all communication for a single connected client.
@@ -38,37 +49,83 @@ public class ServerHandler implements Runnable {
     }
     // A static map to track all active file transfer negotiations across all handlers.
     private static final Map<UUID, PendingTransfer> pendingFileTransfers = new ConcurrentHashMap<>();
+    // How many of a room's most recent messages are shown when joining it; older pages are
+    // fetched with HISTORY. Page requests are capped at HISTORY_MAX_PAGE.
+    private static final int HISTORY_PAGE_SIZE = Math.max(1, ServerConfig.getInt("chat.history.pageSize", 50));
+    private static final int HISTORY_MAX_PAGE = Math.max(HISTORY_PAGE_SIZE, ServerConfig.getInt("chat.history.maxPage", 500));
+    // SEARCH returns at most this many of the newest matches.
+    private static final int SEARCH_MAX_RESULTS = Math.max(1, ServerConfig.getInt("chat.search.maxResults", 20));
+    // Token buckets per command, per session and per room; see -Dchat.limit.*.
+    private static final RateLimiter RATE_LIMITER = RateLimiter.fromConfig();
+    // User names allowed to run STATS, from -Dchat.admins (comma-separated). Empty by default.
+    private static final Set<String> ADMINS = parseNames(ServerConfig.getString("chat.admins", ""));
+    // Handling time per command ("command.SEND_MSG", ...), shared by the text and binary protocols.
+    private static final Map<String, LatencyHistogram> COMMAND_LATENCY = new HashMap<>();
+    // The same histograms and the rate-limiter index, looked up by binary opcode.
+    private static final LatencyHistogram[] OPCODE_LATENCY = new LatencyHistogram[256];
+    private static final int[] OPCODE_LIMIT = new int[256];
 
+    static {
+        String[] commands = {
+            "HELLO", "LOGIN", "LOGOUT", "LIST_ROOMS", "JOIN_ROOM", "SEND_MSG", "HISTORY", "EDIT_MSG", "DELETE_MSG",
+            "SEARCH", "STATS", "WANT_TO_SEND_FILE", "ACCEPT_FILE", "REJECT_FILE"
+        };
+        for (String command : commands) COMMAND_LATENCY.put(command, Metrics.timer("command." + command));
+        for (int opcode = 0; opcode < 256; opcode++) {
+            String command = commandName((byte) opcode);
+            OPCODE_LATENCY[opcode] = command == null ? null : COMMAND_LATENCY.get(command);
+            OPCODE_LIMIT[opcode] = command == null ? RateLimiter.NOT_LIMITED : RateLimiter.commandIndex(command);
+        }
+        Metrics.gauge("transfers.pending", pendingFileTransfers::size);
+    }
+
+    // Only set when the client is served by the blocking thread-per-client engine.
     private final Socket controlSocket;
+    private final ClientSession session;
     private final UUID clientId;
     private DataInputStream dataIn;
-    private DataOutputStream dataOut;
     private boolean isAuthenticated = false;
     private LoginService loginService;
     private User currentUser;
-    private MessageProtocol messageProtocol;
     private final Datahandler datahandler;
+    // Everything that happens to a chat message after it arrives: parsing, checks, storage, delivery.
+    private final MessagePipeline pipeline;
     private UUID currentChatroomId;
+    private final TokenBucket[] rateBuckets = RATE_LIMITER.newSessionBuckets();
+
+    public ServerHandler(Socket socket, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) {
+        // Assign a unique ID to this client's session.
+        this(socket, new SocketSession(UUID.randomUUID(), socket), loginService, datahandler, pipeline);
+    }
+
+    // Used by the non-blocking engine, which owns the socket and feeds decoded frames in itself.
+    public ServerHandler(ClientSession session, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) {
+        this(null, session, loginService, datahandler, pipeline);
+    }
 
-    public ServerHandler(Socket socket, LoginService loginService, Datahandler datahandler) {
+    private ServerHandler(Socket socket, ClientSession session, LoginService loginService, Datahandler datahandler, MessagePipeline pipeline) {
         this.controlSocket = socket;
-        this.clientId = UUID.randomUUID(); // Assign a unique ID to this client's session.
+        this.session = session;
+        this.clientId = session.getId();
         this.loginService = loginService;
-        this.messageProtocol = new MessageProtocol();
         this.datahandler = datahandler;
+        this.pipeline = pipeline;
         this.currentChatroomId = null;
     }
 
     @Override
     public void run() {
         try {
-            ClientManager.addClient(clientId, controlSocket);
+            onConnect();
             dataIn = new DataInputStream(controlSocket.getInputStream());
-            dataOut = new DataOutputStream(controlSocket.getOutputStream());
             // The main loop for this client's session. It continuously reads messages.
+            // Once the client has negotiated the binary protocol, frames are read in that format instead.
             while (true) {
-                String clientMessage = dataIn.readUTF();
-                handleClientMessage(clientMessage);
+                if (session.getProtocolVersion() >= BinaryCodec.VERSION) {
+                    handleBinaryFrame(BinaryCodec.readFrame(dataIn));
+                } else {
+                    handleClientMessage(dataIn.readUTF());
+                }
             }
         } catch (IOException e) {
             // This block is typically reached when a client disconnects unexpectedly.
@@ -79,41 +136,182 @@ public class ServerHandler implements Runnable {
         }
     }
 
+    // Registers the session so other handlers can reach this client.
+    void onConnect() {
+        ClientManager.addClient(session);
+    }
+
     // Acts as a command router, parsing the initial command from the client's message.
-    private void handleClientMessage(String message) {
+    void handleClientMessage(String message) {
+        String[] parts = message.split("::", 2);
+        String command = parts[0];
+        long started = System.nanoTime();
         try {
-            String[] parts = message.split("::", 2);
-            String command = parts[0];
+            if (isThrottled(RateLimiter.commandIndex(command), targetRoom(command, message))) return;
             // Authentication checks are performed before executing commands.
             switch (command) {
+                case "HELLO": handleHello(message); break;
                 case "LOGIN": handleLogin(message); break;
                 case "LOGOUT": handleLogout(); break;
                 case "LIST_ROOMS": sendChatroomList(); break;
                 case "JOIN_ROOM": if (isAuthenticated) handleJoinRoom(message); break;
                 case "SEND_MSG": if (isAuthenticated) handleTextMessage(message); break;
+                case "HISTORY": if (isAuthenticated) handleHistory(message); break;
+                case "EDIT_MSG": if (isAuthenticated) handleEditMessage(message); break;
+                case "DELETE_MSG": if (isAuthenticated) handleDeleteMessage(message); break;
+                case "SEARCH": if (isAuthenticated) handleSearch(message); break;
+                case "STATS": if (isAuthenticated) sendStats(); break;
                 
                 case "WANT_TO_SEND_FILE": if (isAuthenticated) handleFileTransferRequest(message); break;
                 case "ACCEPT_FILE": if (isAuthenticated) handleFileResponse(message, true); break;
                 case "REJECT_FILE": if (isAuthenticated) handleFileResponse(message, false); break;
 
-                default: dataOut.writeUTF("Invalid command: " + command); break;
+                default: session.send("Invalid command: " + command); break;
             }
         } catch (IOException e) {
             System.err.println("Error handling client message: " + e.getMessage());
+        } finally {
+            LatencyHistogram latency = COMMAND_LATENCY.get(command);
+            if (latency != null) latency.record(System.nanoTime() - started);
+        }
+    }
+
+    // The binary (v2) counterpart of handleClientMessage. Arguments arrive already typed,
+    // so the same handlers run without any string splitting or UUID/date parsing.
+    void handleBinaryFrame(BinaryCodec.Frame frame) {
+        int opcode = frame.opcode() & 0xFF;
+        long started = System.nanoTime();
+        try {
+            // A message is charged to the room it is sent to, so it is decoded before the check.
+            MessageModel sent = frame.opcode() == BinaryCodec.OP_SEND_MSG ? BinaryCodec.decodeMessage(frame) : null;
+            if (isThrottled(OPCODE_LIMIT[opcode], sent != null ? sent.chatroomId : currentChatroomId)) return;
+            switch (frame.opcode()) {
+                case BinaryCodec.OP_LOGIN: performLogin(frame.readString()); break;
+                case BinaryCodec.OP_LOGOUT: handleLogout(); break;
+                case BinaryCodec.OP_LIST_ROOMS: sendChatroomList(); break;
+                case BinaryCodec.OP_JOIN_ROOM: if (isAuthenticated) joinRoom(frame.readUuid()); break;
+                case BinaryCodec.OP_SEND_MSG: if (isAuthenticated) pipeline.process(MessageContext.fromMessage(sent, session, currentUser.getUserName())); break;
+                case BinaryCodec.OP_HISTORY: if (isAuthenticated) sendHistoryPage(frame.readUuid(), frame.readString(), (int) frame.readVarLong()); break;
+                case BinaryCodec.OP_EDIT_MSG: if (isAuthenticated) editMessage(frame.readUuid(), frame.readString()); break;
+                case BinaryCodec.OP_DELETE_MSG: if (isAuthenticated) deleteMessage(frame.readUuid()); break;
+                case BinaryCodec.OP_SEARCH: if (isAuthenticated) searchRoom(frame.readUuid(), frame.readString()); break;
+                case BinaryCodec.OP_STATS: if (isAuthenticated) sendStats(); break;
+
+                case BinaryCodec.OP_WANT_TO_SEND_FILE: if (isAuthenticated) requestFileTransfer(frame.readString(), frame.readString(), frame.readVarLong()); break;
+                case BinaryCodec.OP_ACCEPT_FILE: if (isAuthenticated) respondToFileTransfer(frame.readUuid(), true); break;
+                case BinaryCodec.OP_REJECT_FILE: if (isAuthenticated) respondToFileTransfer(frame.readUuid(), false); break;
+
+                default: session.send("Invalid opcode: " + frame.opcode()); break;
+            }
+        } catch (IOException e) {
+            System.err.println("Error handling client frame: " + e.getMessage());
+        } finally {
+            LatencyHistogram latency = OPCODE_LATENCY[opcode];
+            if (latency != null) latency.record(System.nanoTime() - started);
         }
     }
 
+    // Checks the rate limits before any work is done for a command. Over the limit, the client gets
+    // "THROTTLED::<command>::<retry after ms>" and the command is dropped.
+    private boolean isThrottled(int command, UUID roomId) throws IOException {
+        long retryAfterMillis = RATE_LIMITER.tryAcquire(rateBuckets, command, roomId);
+        if (retryAfterMillis == 0) return false;
+        String name = RateLimiter.commandName(command);
+        Logger.debug(Logger.LogEvent.USER_SESSION, "Throttled {} from client {}", name, clientId);
+        session.send("THROTTLED::" + name + "::" + retryAfterMillis);
+        return true;
+    }
+
+    // The room whose limits a command is charged to. A SEND_MSG line names its room
+    // (SEND_MSG::id::timestamp::type::sender::roomId::content); a malformed one is charged to none,
+    // as the pipeline drops it anyway. Other commands count against the room the client is in.
+    private UUID targetRoom(String command, String message) {
+        if (!"SEND_MSG".equals(command)) return currentChatroomId;
+        String[] parts = message.split("::", 7);
+        if (parts.length < 7) return null;
+        try {
+            return UUID.fromString(parts[5]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // The text command a binary opcode stands for, or null for unknown opcodes.
+    private static String commandName(byte opcode) {
+        switch (opcode) {
+            case BinaryCodec.OP_LOGIN: return "LOGIN";
+            case BinaryCodec.OP_LOGOUT: return "LOGOUT";
+            case BinaryCodec.OP_LIST_ROOMS: return "LIST_ROOMS";
+            case BinaryCodec.OP_JOIN_ROOM: return "JOIN_ROOM";
+            case BinaryCodec.OP_SEND_MSG: return "SEND_MSG";
+            case BinaryCodec.OP_HISTORY: return "HISTORY";
+            case BinaryCodec.OP_EDIT_MSG: return "EDIT_MSG";
+            case BinaryCodec.OP_DELETE_MSG: return "DELETE_MSG";
+            case BinaryCodec.OP_SEARCH: return "SEARCH";
+            case BinaryCodec.OP_STATS: return "STATS";
+            case BinaryCodec.OP_WANT_TO_SEND_FILE: return "WANT_TO_SEND_FILE";
+            case BinaryCodec.OP_ACCEPT_FILE: return "ACCEPT_FILE";
+            case BinaryCodec.OP_REJECT_FILE: return "REJECT_FILE";
+            default: return null;
+        }
+    }
+
+    // Admin only: every server metric, one per line, between a header and a footer.
+    private void sendStats() throws IOException {
+        if (currentUser == null || !ADMINS.contains(currentUser.getUserName())) {
+            session.send("ERROR: STATS is only available to administrators.");
+            return;
+        }
+        session.send("--- Server stats ---");
+        for (String line : Metrics.snapshot().split("\n")) {
+            session.send(line);
+        }
+        session.send("--- End of stats ---");
+    }
+
+    private static Set<String> parseNames(String list) {
+        Set<String> names = new HashSet<>();
+        for (String name : list.split(",")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        return names;
+    }
+
+    // Protocol negotiation. "HELLO::2" switches this connection to binary frames after the reply.
+    private void handleHello(String message) throws IOException {
+        String[] parts = message.split("::", 2);
+        int requested;
+        try {
+            requested = parts.length < 2 ? BinaryCodec.LEGACY_VERSION : Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException e) {
+            requested = BinaryCodec.LEGACY_VERSION;
+        }
+        int agreed = requested >= BinaryCodec.VERSION ? BinaryCodec.VERSION : BinaryCodec.LEGACY_VERSION;
+        // The reply still goes out in the text format; everything after it uses the agreed version.
+        session.switchProtocol(BinaryCodec.HELLO_COMMAND + "::" + agreed, agreed);
+        Logger.info(Logger.LogEvent.USER_SESSION, "Client " + clientId + " negotiated protocol version " + agreed);
+    }
+
     // Handles the first step of a file transfer: the sender's request.
     private void handleFileTransferRequest(String message) throws IOException {
         String[] parts = message.split("::", 4);
-        if (parts.length < 4) return;
-        String recipientUsername = parts[1];
-        String filename = parts[2];
-        long fileSize = Long.parseLong(parts[3]);
+        if (parts.length < 4) { session.send("ERROR: Usage WANT_TO_SEND_FILE::recipient::filename::size"); return; }
+        long fileSize;
+        try {
+            fileSize = Long.parseLong(parts[3].trim());
+        } catch (NumberFormatException e) {
+            session.send("ERROR: Invalid file size.");
+            return;
+        }
+        requestFileTransfer(parts[1], parts[2], fileSize);
+    }
 
+    private void requestFileTransfer(String recipientUsername, String filename, long fileSize) throws IOException {
+        if (fileSize < 0) { session.send("ERROR: Invalid file size."); return; }
         User recipientUser = loginService.getUserByUsername(recipientUsername);
-        if (recipientUser == null || !loginService.isUserActive(recipientUser.getId())) {
-            dataOut.writeUTF("INFO::User '" + recipientUsername + "' is not online.");
+        ClientSession recipientSession = recipientUser != null ? loginService.getSession(recipientUser.getId()) : null;
+        if (recipientSession == null) {
+            session.send("INFO::User '" + recipientUsername + "' is not online.");
             return;
         }
 
@@ -121,19 +319,27 @@ public class ServerHandler implements Runnable {
         pendingFileTransfers.put(transferId, new PendingTransfer(this.clientId, recipientUsername, fileSize));
 
         // Forward the file transfer request to the recipient.
-        String recipientClientIdStr = loginService.getClientId(recipientUser.getId());
-        UUID recipientClientId = UUID.fromString(recipientClientIdStr);
+        UUID recipientClientId = recipientSession.getId();
         String forwardMessage = "INCOMING_FILE::" + currentUser.getUserName() + "::" + filename + "::" + fileSize + "::" + transferId;
         ClientManager.unibroadcastMessage(recipientClientId, forwardMessage);
-        dataOut.writeUTF("INFO::File transfer request sent to " + recipientUsername + ". Waiting for response...");
+        session.send("INFO::File transfer request sent to " + recipientUsername + ". Waiting for response...");
     }
 
     // Handles the second step: the recipient's response (accept or reject).
-    private void handleFileResponse(String message, boolean accepted) {
+    private void handleFileResponse(String message, boolean accepted) throws IOException {
         String[] parts = message.split("::", 2);
-        if (parts.length < 2) return;
-        UUID transferId = UUID.fromString(parts[1]);
+        if (parts.length < 2) { session.send("ERROR: Missing transfer ID."); return; }
+        UUID transferId;
+        try {
+            transferId = UUID.fromString(parts[1].trim());
+        } catch (IllegalArgumentException e) {
+            session.send("ERROR: Invalid transfer ID.");
+            return;
+        }
+        respondToFileTransfer(transferId, accepted);
+    }
 
+    private void respondToFileTransfer(UUID transferId, boolean accepted) {
         PendingTransfer transfer = pendingFileTransfers.get(transferId);
         if (transfer == null) return; // The transfer request may have expired or been invalid.
 
@@ -154,122 +360,221 @@ public class ServerHandler implements Runnable {
 
     private void handleLogin(String message) throws IOException {
         String[] parts = message.split("::", 2);
-        if (parts.length < 2) { dataOut.writeUTF("ERROR: Invalid login format."); return; }
-        String username = parts[1];
+        if (parts.length < 2) { session.send("ERROR: Invalid login format."); return; }
+        performLogin(parts[1]);
+    }
+
+    private void performLogin(String username) throws IOException {
         // The server constructs the formal login message to be parsed by the LoginService.
         String loginMessage = clientId.toString() + "|" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + "|LOGIN|" + username;
-        currentUser = loginService.parseAndValidateLogin(loginMessage);
+        currentUser = loginService.parseAndValidateLogin(loginMessage, session);
         if (currentUser != null) {
             this.isAuthenticated = true;
-            dataOut.writeUTF("SUCCESS: Logged in as " + currentUser.getUserName());
+            session.send("SUCCESS: Logged in as " + currentUser.getUserName());
             Logger.info(Logger.LogEvent.USER_SESSION, "Client logget ind: " + currentUser.getUserName());
         } else {
             this.isAuthenticated = false;
-            dataOut.writeUTF("ERROR: Login failed.");
+            session.send("ERROR: Login failed.");
         }
     }
 
     private void handleLogout() throws IOException {
         if (isAuthenticated) {
-            loginService.logoutByClientId(clientId.toString());
+            // Room membership holds this session, so leave the room before the user goes offline.
+            leaveCurrentRoom();
+            this.currentChatroomId = null;
+            loginService.logoutBySession(clientId);
             this.isAuthenticated = false;
-            dataOut.writeUTF("SUCCESS: Logged out.");
+            session.send("SUCCESS: Logged out.");
             Logger.info(Logger.LogEvent.USER_SESSION, "Client logged out: " + (currentUser != null ? currentUser.getUserName() : "Unknown"));
         } else {
-            dataOut.writeUTF("ERROR: Not logged in.");
+            session.send("ERROR: Not logged in.");
         }
     }
 
     // Manages a user's transition between chat rooms.
     private void handleJoinRoom(String message) throws IOException {
         String[] parts = message.split("::", 2);
-        if (parts.length < 2) { dataOut.writeUTF("ERROR: Invalid room ID format."); return; }
+        if (parts.length < 2) { session.send("ERROR: Invalid room ID format."); return; }
+        UUID newChatroomId;
         try {
-            UUID newChatroomId = UUID.fromString(parts[1]);
-            ChatRoom newRoom = ChatroomManager.getChatroomById(newChatroomId);
-            if (newRoom != null && currentUser != null) {
-                // If the user is already in a room, notify others of their departure.
-                if (this.currentChatroomId != null && !this.currentChatroomId.equals(newChatroomId)) {
-                    ChatRoom oldRoom = ChatroomManager.getChatroomById(this.currentChatroomId);
-                    if (oldRoom != null) {
-                        oldRoom.removeMember(currentUser.getId());
-                        String leaveNotification = "[SYSTEM]: " + currentUser.getUserName() + " has left the room.";
-                        for (UUID memberId : oldRoom.getMembers()) {
-                            String clientSessionIdStr = loginService.getClientId(memberId);
-                            if (clientSessionIdStr != null) ClientManager.unibroadcastMessage(UUID.fromString(clientSessionIdStr), leaveNotification);
-                        }
-                    }
-                }
-                this.currentChatroomId = newChatroomId;
-                newRoom.addMember(currentUser.getId());
-                // Notify members of the new room about the user's arrival.
-                String joinNotification = "[SYSTEM]: " + currentUser.getUserName() + " has joined the room.";
-                for (UUID memberId : newRoom.getMembers()) {
-                    if (!memberId.equals(currentUser.getId())) {
-                        String clientSessionIdStr = loginService.getClientId(memberId);
-                        if (clientSessionIdStr != null) ClientManager.unibroadcastMessage(UUID.fromString(clientSessionIdStr), joinNotification);
-                    }
-                }
-                // Send the new room's message history to the user.
-                dataOut.writeUTF("--- Displaying history for " + newRoom.getRoomName() + " ---");
-                List<MessageModel> history = datahandler.getMessages().stream().filter(msg -> msg.chatroomId.equals(newChatroomId)).collect(Collectors.toList());
-                if (history.isEmpty()) { dataOut.writeUTF("... No messages in this room yet ..."); }
-                else { for (MessageModel msg : history) { dataOut.writeUTF("[" + msg.sender + "]: " + msg.content); } }
-                dataOut.writeUTF("--- End of history ---");
-            } else { dataOut.writeUTF("ERROR: Could not find the room."); }
-        } catch (IllegalArgumentException e) { dataOut.writeUTF("ERROR: Invalid UUID format for room ID."); }
+            newChatroomId = UUID.fromString(parts[1]);
+        } catch (IllegalArgumentException e) { session.send("ERROR: Invalid UUID format for room ID."); return; }
+        joinRoom(newChatroomId);
+    }
+
+    private void joinRoom(UUID newChatroomId) throws IOException {
+        ChatRoom newRoom = ChatroomManager.getChatroomById(newChatroomId);
+        if (newRoom != null && currentUser != null) {
+            // If the user is already in a room, notify others of their departure.
+            if (this.currentChatroomId != null && !this.currentChatroomId.equals(newChatroomId)) {
+                leaveCurrentRoom();
+            }
+            this.currentChatroomId = newChatroomId;
+            newRoom.addMember(currentUser.getId(), session);
+            // Notify members of the new room about the user's arrival.
+            broadcastToRoom(newRoom, "[SYSTEM]: " + currentUser.getUserName() + " has joined the room.", currentUser.getId());
+            // Send the new room's message history to the user.
+            // The block is served from a per-room cache and only rebuilt after the room changed.
+            RoomHistory history = datahandler.getRoomHistory(newChatroomId);
+            session.sendFrame(HistoryCache.historyBlock(newRoom, history, HISTORY_PAGE_SIZE, session.getProtocolVersion()));
+        } else { session.send("ERROR: Could not find the room."); }
+    }
+
+    // HISTORY::<roomId>[::<cursor>[::<limit>]] where cursor is empty, "before:<n>" or "after:<n>".
+    private void handleHistory(String message) throws IOException {
+        String[] parts = message.split("::", 4);
+        if (parts.length < 2) { session.send("ERROR: Usage HISTORY::roomId::[before:n|after:n]::[limit]"); return; }
+        try {
+            UUID roomId = UUID.fromString(parts[1]);
+            String cursor = parts.length > 2 ? parts[2] : "";
+            int limit = parts.length > 3 && !parts[3].isEmpty() ? Integer.parseInt(parts[3].trim()) : HISTORY_PAGE_SIZE;
+            sendHistoryPage(roomId, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            session.send("ERROR: Invalid HISTORY request.");
+        }
+    }
+
+    // Sends one bounded page of a room's history. Locating the page is a binary search on the
+    // cursor, so the cost depends on the page size only.
+    private void sendHistoryPage(UUID roomId, String cursor, int requestedLimit) throws IOException {
+        ChatRoom room = ChatroomManager.getChatroomById(roomId);
+        if (room == null) { session.send("ERROR: Could not find the room."); return; }
+        // A limit of 0 (or less) asks for the default page size.
+        int limit = requestedLimit <= 0 ? HISTORY_PAGE_SIZE : Math.min(requestedLimit, HISTORY_MAX_PAGE);
+        RoomHistory history = datahandler.getRoomHistory(roomId);
+        RoomHistory.Page page;
+        boolean forward = false;
+        try {
+            if (cursor == null || cursor.isEmpty()) {
+                page = history.latest(limit);
+            } else if (cursor.startsWith("before:")) {
+                page = history.before(Long.parseLong(cursor.substring("before:".length())), limit);
+            } else if (cursor.startsWith("after:")) {
+                page = history.after(Long.parseLong(cursor.substring("after:".length())), limit);
+                forward = true;
+            } else {
+                session.send("ERROR: Invalid history cursor: " + cursor);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            session.send("ERROR: Invalid history cursor: " + cursor);
+            return;
+        }
+        session.sendFrame(HistoryCache.pageBlock(room, page, forward, session.getProtocolVersion()));
+    }
+
+    // SEARCH::<roomId>::<query>
+    private void handleSearch(String message) throws IOException {
+        String[] parts = message.split("::", 3);
+        if (parts.length < 3) { session.send("ERROR: Usage SEARCH::roomId::query"); return; }
+        try {
+            searchRoom(UUID.fromString(parts[1]), parts[2]);
+        } catch (IllegalArgumentException e) {
+            session.send("ERROR: Invalid room ID.");
+        }
+    }
+
+    // Answers from the room's inverted index, so the cost depends on how rare the query's
+    // rarest word is, not on the size of the room.
+    private void searchRoom(UUID roomId, String query) throws IOException {
+        ChatRoom room = ChatroomManager.getChatroomById(roomId);
+        if (room == null) { session.send("ERROR: Could not find the room."); return; }
+        if (query == null || query.trim().isEmpty()) { session.send("ERROR: Empty search query."); return; }
+        List<MessageModel> results = datahandler.getRoomHistory(roomId).search(query, SEARCH_MAX_RESULTS);
+        session.sendFrame(HistoryCache.searchBlock(room, query.trim(), results, session.getProtocolVersion()));
+    }
+
+    // EDIT_MSG::<messageId>::<new content>
+    private void handleEditMessage(String message) throws IOException {
+        String[] parts = message.split("::", 3);
+        if (parts.length < 3) { session.send("ERROR: Usage EDIT_MSG::messageId::newText"); return; }
+        try {
+            editMessage(UUID.fromString(parts[1]), parts[2]);
+        } catch (IllegalArgumentException e) {
+            session.send("ERROR: Invalid message ID.");
+        }
+    }
+
+    // DELETE_MSG::<messageId>
+    private void handleDeleteMessage(String message) throws IOException {
+        String[] parts = message.split("::", 2);
+        if (parts.length < 2) { session.send("ERROR: Usage DELETE_MSG::messageId"); return; }
+        try {
+            deleteMessage(UUID.fromString(parts[1]));
+        } catch (IllegalArgumentException e) {
+            session.send("ERROR: Invalid message ID.");
+        }
+    }
+
+    // Users may only edit their own messages. The room is told about the change so clients can update.
+    private void editMessage(UUID messageId, String newText) throws IOException {
+        MessageModel original = datahandler.getMessageById(messageId);
+        if (!isOwnMessage(original)) { session.send("ERROR: Message not found or not yours to edit."); return; }
+        String problem = ValidateStage.check(newText);
+        if (problem != null) { session.send("ERROR: " + problem); return; }
+        String converted = EmojiConverter.convert(newText);
+        if (!datahandler.updateMessage(messageId, converted)) { session.send("ERROR: Message not found or not yours to edit."); return; }
+        session.send("SUCCESS: Message edited.");
+        ChatRoom room = ChatroomManager.getChatroomById(original.chatroomId);
+        if (room != null) broadcastToRoom(room, "MESSAGE_EDITED::" + messageId + "::" + original.sender + "::" + converted, null);
+    }
+
+    private void deleteMessage(UUID messageId) throws IOException {
+        MessageModel original = datahandler.getMessageById(messageId);
+        if (!isOwnMessage(original) || !datahandler.deleteMessage(messageId)) {
+            session.send("ERROR: Message not found or not yours to delete.");
+            return;
+        }
+        session.send("SUCCESS: Message deleted.");
+        ChatRoom room = ChatroomManager.getChatroomById(original.chatroomId);
+        if (room != null) broadcastToRoom(room, "MESSAGE_DELETED::" + messageId, null);
+    }
+
+    private boolean isOwnMessage(MessageModel message) {
+        return message != null && currentUser != null && currentUser.getUserName().equals(message.sender);
     }
 
     // Handles an incoming text message from the client.
     private void handleTextMessage(String message) {
-        MessageModel parsedMessage = messageProtocol.parseMessage(message);
-        if (parsedMessage != null) {
-            // Converts any emoji shortcuts (e.g., ":)") into Unicode characters.
-            parsedMessage.content = EmojiConverter.convert(parsedMessage.content);
-
-            this.datahandler.addMessageToArray(parsedMessage);
-            ChatRoom targetRoom = ChatroomManager.getChatroomById(parsedMessage.chatroomId);
-            if (targetRoom != null) {
-                String formattedMessage = "[" + targetRoom.getRoomName() + " | " + parsedMessage.sender + "]: " + parsedMessage.content;
-                // Broadcast the message to all members of the target chat room.
-                for (UUID memberId : targetRoom.getMembers()) {
-                    String clientSessionIdStr = loginService.getClientId(memberId);
-                    if (clientSessionIdStr != null) ClientManager.unibroadcastMessage(UUID.fromString(clientSessionIdStr), formattedMessage);
-                }
-            }
+        pipeline.process(MessageContext.fromCommand(message, session, currentUser.getUserName()));
+    }
+
+    // Sends one message to every member of a room, optionally skipping one user.
+    // The message is encoded once by the ClientManager and the same frame is queued for everyone.
+    private void broadcastToRoom(ChatRoom room, String message, UUID excludedUserId) {
+        ClientManager.multicastMessage(room.getMemberSnapshot(), excludedUserId, message);
+    }
+
+    // Takes the user out of their current room and tells the remaining members.
+    private void leaveCurrentRoom() {
+        if (this.currentChatroomId == null || currentUser == null) return;
+        ChatRoom oldRoom = ChatroomManager.getChatroomById(this.currentChatroomId);
+        if (oldRoom != null && oldRoom.removeMember(currentUser.getId())) {
+            broadcastToRoom(oldRoom, "[SYSTEM]: " + currentUser.getUserName() + " has left the room.", null);
         }
     }
 
     // Sends the list of available chat rooms to the client.
     private void sendChatroomList() throws IOException {
-        dataOut.writeUTF("START_CHATROOM_LIST");
+        session.send("START_CHATROOM_LIST");
         for (ChatRoom room : ChatroomManager.getAllChatrooms().values()) {
-            dataOut.writeUTF(room.getId().toString() + "::" + room.getRoomName());
+            session.send(room.getId().toString() + "::" + room.getRoomName());
         }
-        dataOut.writeUTF("END_CHATROOM_LIST");
+        session.send("END_CHATROOM_LIST");
     }
     
     // Cleans up all resources associated with this client's session.
-    private void closeConnection() {
+    void closeConnection() {
         // Cancel any pending file transfers initiated by this client.
         pendingFileTransfers.entrySet().removeIf(entry -> entry.getValue().senderClientId.equals(this.clientId));
         
         // Notify the current chat room that the user has left.
-        if (this.currentChatroomId != null && currentUser != null) {
-            ChatRoom oldRoom = ChatroomManager.getChatroomById(this.currentChatroomId);
-            if (oldRoom != null) {
-                oldRoom.removeMember(currentUser.getId());
-                String leaveNotification = "[SYSTEM]: " + currentUser.getUserName() + " has left the room.";
-                for (UUID memberId : oldRoom.getMembers()) {
-                    String clientSessionIdStr = loginService.getClientId(memberId);
-                    if (clientSessionIdStr != null) ClientManager.unibroadcastMessage(UUID.fromString(clientSessionIdStr), leaveNotification);
-                }
-            }
-        }
+        leaveCurrentRoom();
         // Log the user out and remove them from active managers.
-        if (currentUser != null) loginService.logoutByClientId(clientId.toString());
+        if (currentUser != null) loginService.logoutBySession(clientId);
         ClientManager.removeClient(clientId);
-        try { if (controlSocket != null) controlSocket.close(); } catch (IOException e) { /* Ignored */ }
+        session.close();
         System.out.println("Connection closed for client: " + clientId);
     }
 }
\ No newline at end of file
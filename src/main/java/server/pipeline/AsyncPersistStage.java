@@ -0,0 +1,115 @@
+package server.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import common.models.Datahandler;
+import common.models.MessageModel;
+import server.utils.LatencyHistogram;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+import server.utils.Metrics;
+import server.utils.RingBuffer;
+import server.utils.ServerConfig;
+
+// Persists messages off the sender's critical path. The stage only puts the message on a
+// lock-free queue; a "message-persist" thread takes them off in batches and stores each batch
+// with one Datahandler.addReservedMessages call, i.e. one journal write (and one fsync with
+// chat.store.fsync=always) per batch.
+//
+// A message shows up in history (and can be edited or searched) once its batch is written,
+// normally within a millisecond. When the queue is full the sender persists the message itself,
+// so nothing is dropped; it just loses the asynchrony until the writer catches up.
+//
+// Settings: -Dchat.pipeline.persistQueue (65536), -Dchat.pipeline.persistBatch (512),
+// -Dchat.pipeline.persistIdleUs (200, how long the writer sleeps when the queue is empty).
+public class AsyncPersistStage implements MessageStage {
+    private final Datahandler datahandler;
+    private final RingBuffer<MessageModel> queue;
+    private final int maxBatch;
+    private final long idleWaitNanos;
+    private final Thread writer;
+    private final AtomicLong inlineWrites = new AtomicLong();
+    // Time to store one batch, so the writer's cost is visible next to the stage timings.
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private volatile boolean running = true;
+
+    public AsyncPersistStage(Datahandler datahandler) {
+        this.datahandler = datahandler;
+        this.queue = new RingBuffer<>(Math.max(2, ServerConfig.getInt("chat.pipeline.persistQueue", 65_536)));
+        this.maxBatch = Math.max(1, ServerConfig.getInt("chat.pipeline.persistBatch", 512));
+        this.idleWaitNanos = Math.max(1, ServerConfig.getLong("chat.pipeline.persistIdleUs", 200)) * 1000;
+        Metrics.registerTimer("pipeline.persist-async.batch", batchLatency);
+        Metrics.gauge("pipeline.persist-async.queued", queue::size);
+        Metrics.gauge("pipeline.persist-async.inline", inlineWrites::get);
+        this.writer = new Thread(this::runWriter, "message-persist");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public String name() { return "persist-async"; }
+
+    @Override
+    public boolean process(MessageContext context) {
+        // The ID is claimed here, before fanout, as the writer stores the message later. A
+        // duplicate is rejected now instead of being broadcast and then dropped by the writer.
+        if (!datahandler.reserveMessageId(context.message.messageId)) return context.reject("Duplicate message ID.");
+        if (!running || !queue.offer(context.message)) {
+            inlineWrites.incrementAndGet();
+            datahandler.addReservedMessage(context.message);
+        }
+        return true;
+    }
+
+    // Messages persisted on the sender's thread because the queue was full (or closed).
+    public long getInlineWrites() {
+        return inlineWrites.get();
+    }
+
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    // Stops the writer after everything queued so far has been stored.
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        List<MessageModel> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            if (drainBatch(batch) == 0) {
+                LockSupport.parkNanos(idleWaitNanos);
+            }
+        }
+        while (drainBatch(batch) > 0) { /* flush what is left */ }
+    }
+
+    private int drainBatch(List<MessageModel> batch) {
+        MessageModel message;
+        while (batch.size() < maxBatch && (message = queue.poll()) != null) {
+            batch.add(message);
+        }
+        int size = batch.size();
+        if (size == 0) return 0;
+        long started = System.nanoTime();
+        try {
+            datahandler.addReservedMessages(batch);
+        } catch (RuntimeException e) {
+            Logger.error(LogEvent.DATABASE, "Failed to persist a batch of " + size + " messages", e);
+        }
+        batchLatency.record(System.nanoTime() - started);
+        batch.clear();
+        return size;
+    }
+}
@@ -0,0 +1,15 @@
+package server.pipeline;
+
+import server.core.EmojiConverter;
+
+// Converts emoji shortcuts (e.g. ":)") into Unicode characters.
+public class EmojiStage implements MessageStage {
+    @Override
+    public String name() { return "emoji"; }
+
+    @Override
+    public boolean process(MessageContext context) {
+        context.message.content = EmojiConverter.convert(context.message.content);
+        return true;
+    }
+}
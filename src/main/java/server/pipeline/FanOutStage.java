@@ -0,0 +1,21 @@
+package server.pipeline;
+
+import Services.ChatroomManager;
+import Services.ClientManager;
+
+// Delivers the message to every member of its room, encoded once per protocol version.
+// Messages for unknown rooms end here without being delivered.
+public class FanOutStage implements MessageStage {
+    @Override
+    public String name() { return "fanout"; }
+
+    @Override
+    public boolean process(MessageContext context) {
+        if (context.room == null) context.room = ChatroomManager.getChatroomById(context.message.chatroomId);
+        if (context.room == null) return false;
+        String roomName = context.room.getRoomName();
+        String formattedMessage = "[" + roomName + " | " + context.message.sender + "]: " + context.message.content;
+        ClientManager.multicastChatMessage(context.room.getMemberSnapshot(), context.message, roomName, formattedMessage);
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+package server.pipeline;
+
+import Services.ClientSession;
+import common.models.ChatRoom;
+import common.models.MessageModel;
+
+// The state of one chat message as it moves through the pipeline.
+public final class MessageContext {
+    // The SEND_MSG command as received; null when the transport already decoded the message.
+    public final String rawCommand;
+    // The sender's session, for error replies. May be null for messages created by the server.
+    public final ClientSession sender;
+    // The authenticated user the message is sent as; null for messages created by the server.
+    public final String senderName;
+    public MessageModel message;
+    // Resolved by whichever stage first needs it.
+    public ChatRoom room;
+    private String rejection;
+
+    private MessageContext(String rawCommand, MessageModel message, ClientSession sender, String senderName) {
+        this.rawCommand = rawCommand;
+        this.message = message;
+        this.sender = sender;
+        this.senderName = senderName;
+    }
+
+    // A text-protocol SEND_MSG line that still has to be parsed.
+    public static MessageContext fromCommand(String command, ClientSession sender, String senderName) {
+        return new MessageContext(command, null, sender, senderName);
+    }
+
+    // A message the transport has already decoded (binary protocol).
+    public static MessageContext fromMessage(MessageModel message, ClientSession sender, String senderName) {
+        return new MessageContext(null, message, sender, senderName);
+    }
+
+    // Marks the message as rejected; the pipeline tells the sender why. Returns false so a stage
+    // can write "return context.reject(...)".
+    public boolean reject(String reason) {
+        this.rejection = reason;
+        return false;
+    }
+
+    public String getRejection() {
+        return rejection;
+    }
+}
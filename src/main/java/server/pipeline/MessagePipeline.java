@@ -0,0 +1,185 @@
+package server.pipeline;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import common.models.Datahandler;
+import server.utils.LatencyHistogram;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+import server.utils.Metrics;
+import server.utils.ServerConfig;
+
+// The ordered stages every chat message goes through between SEND_MSG and the room.
+// The order is read once at start-up from -Dchat.pipeline, a comma-separated list of stage
+// names or fully qualified MessageStage class names, e.g.
+//
+//     -Dchat.pipeline=parse,validate,emoji,persist-async,fanout
+//
+// Built-in stages: parse, validate, emoji, persist, persist-async, fanout. Each stage gets its
+// own latency histogram, recorded around every call; -Dchat.pipeline.reportIntervalMs logs
+// them periodically (off by default).
+//
+// Stages run on the thread that read the message. With -Dchat.engine=nio that is a selector
+// loop serving many clients, so a stage must not block there: the default for that engine uses
+// persist-async, and naming the synchronous persist stage logs a warning, since its journal
+// write (and fsync) would stall every connection on the loop.
+public class MessagePipeline {
+    public static final String DEFAULT_STAGES = "parse,validate,emoji,persist,fanout";
+    public static final String NIO_DEFAULT_STAGES = "parse,validate,emoji,persist-async,fanout";
+
+    private final MessageStage[] stages;
+    private final LatencyHistogram[] latencies;
+    private static final Metrics.Counter messagesIn = Metrics.counter("messages.in");
+
+    public MessagePipeline(List<MessageStage> stages) {
+        this.stages = stages.toArray(new MessageStage[0]);
+        this.latencies = new LatencyHistogram[this.stages.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            Metrics.registerTimer("pipeline." + this.stages[i].name(), latencies[i]);
+        }
+    }
+
+    // Builds the pipeline named by -Dchat.pipeline. Falls back to the default order if the
+    // setting names a stage that cannot be created, rather than silently running without it.
+    public static MessagePipeline fromConfig(Datahandler datahandler) {
+        boolean nio = "nio".equalsIgnoreCase(ServerConfig.getString("chat.engine", "blocking"));
+        String defaults = nio ? NIO_DEFAULT_STAGES : DEFAULT_STAGES;
+        String configured = ServerConfig.getString("chat.pipeline", defaults);
+        try {
+            MessagePipeline pipeline = new MessagePipeline(createStages(configured, datahandler));
+            Logger.info(LogEvent.SERVER_LIFECYCLE, "Message pipeline: {}", String.join(" -> ", pipeline.getStageNames()));
+            if (nio && pipeline.getStageNames().contains("persist")) {
+                Logger.warning(LogEvent.SERVER_LIFECYCLE, "The persist stage writes the journal on the NIO event loop and stalls its other clients; use persist-async with chat.engine=nio");
+            }
+            return pipeline.startReporting();
+        } catch (IllegalArgumentException e) {
+            Logger.error(LogEvent.SYSTEM_ERROR, "Invalid chat.pipeline '" + configured + "'; using " + defaults, e);
+            return new MessagePipeline(createStages(defaults, datahandler)).startReporting();
+        }
+    }
+
+    private MessagePipeline startReporting() {
+        long intervalMs = ServerConfig.getLong("chat.pipeline.reportIntervalMs", 0);
+        if (intervalMs <= 0) return this;
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(intervalMs);
+                    Logger.info(LogEvent.CHAT_MESSAGE, "Message pipeline latencies:\n{}", report());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "pipeline-report");
+        reporter.setDaemon(true);
+        reporter.start();
+        return this;
+    }
+
+    // Runs the message through every stage until one stops it. A rejected message is answered
+    // with "ERROR: <reason>" on the sender's session. Returns true if the message went all the way.
+    public boolean process(MessageContext context) {
+        messagesIn.increment();
+        for (int i = 0; i < stages.length; i++) {
+            long started = System.nanoTime();
+            boolean proceed;
+            try {
+                proceed = stages[i].process(context);
+            } catch (RuntimeException e) {
+                Logger.error(LogEvent.CHAT_MESSAGE, "Message stage '" + stages[i].name() + "' failed", e);
+                proceed = false;
+            }
+            latencies[i].record(System.nanoTime() - started);
+            if (!proceed) {
+                replyRejection(context);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<String> getStageNames() {
+        List<String> names = new ArrayList<>(stages.length);
+        for (MessageStage stage : stages) names.add(stage.name());
+        return names;
+    }
+
+    public List<MessageStage> getStages() {
+        return Collections.unmodifiableList(Arrays.asList(stages));
+    }
+
+    // The latency histogram of the stage at the given position.
+    public LatencyHistogram getLatency(int stageIndex) {
+        return latencies[stageIndex];
+    }
+
+    // One line per stage, e.g. "emoji: count=1200 mean=310ns p50=287ns p99=1.1us ...".
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < stages.length; i++) {
+            out.append(stages[i].name()).append(": ").append(latencies[i].summary()).append('\n');
+        }
+        return out.toString();
+    }
+
+    public void close() {
+        for (MessageStage stage : stages) {
+            try {
+                stage.close();
+            } catch (RuntimeException e) {
+                Logger.error(LogEvent.SYSTEM_ERROR, "Failed to close message stage '" + stage.name() + "'", e);
+            }
+        }
+    }
+
+    private static void replyRejection(MessageContext context) {
+        if (context.getRejection() == null || context.sender == null) return;
+        try {
+            context.sender.send("ERROR: " + context.getRejection());
+        } catch (java.io.IOException e) {
+            Logger.error(LogEvent.CHAT_MESSAGE, "Could not tell client " + context.sender.getId() + " why its message was rejected", e);
+        }
+    }
+
+    private static List<MessageStage> createStages(String names, Datahandler datahandler) {
+        List<MessageStage> stages = new ArrayList<>();
+        for (String raw : names.split(",")) {
+            String name = raw.trim();
+            if (!name.isEmpty()) stages.add(createStage(name, datahandler));
+        }
+        if (stages.isEmpty()) throw new IllegalArgumentException("No stages configured");
+        return stages;
+    }
+
+    private static MessageStage createStage(String name, Datahandler datahandler) {
+        switch (name) {
+            case "parse": return new ParseStage();
+            case "validate": return new ValidateStage();
+            case "emoji": return new EmojiStage();
+            case "persist": return new PersistStage(datahandler);
+            case "persist-async": return new AsyncPersistStage(datahandler);
+            case "fanout": return new FanOutStage();
+            default: return loadStage(name, datahandler);
+        }
+    }
+
+    // A custom stage given by class name, constructed with the Datahandler if it accepts one.
+    private static MessageStage loadStage(String className, Datahandler datahandler) {
+        try {
+            Class<? extends MessageStage> type = Class.forName(className).asSubclass(MessageStage.class);
+            try {
+                Constructor<? extends MessageStage> constructor = type.getConstructor(Datahandler.class);
+                return constructor.newInstance(datahandler);
+            } catch (NoSuchMethodException e) {
+                return type.getConstructor().newInstance();
+            }
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown message stage: " + className, e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package server.pipeline;
+
+// One step on the way from SEND_MSG to the room: parse, validate, transform, persist, fan out.
+// Stages run in the order they were configured, on the thread that received the message.
+// A stage that wants to be usable from -Dchat.pipeline by class name needs a public constructor
+// taking either nothing or the Datahandler.
+public interface MessageStage {
+
+    // Used in configuration and in timing reports.
+    String name();
+
+    // Handles the message in 'context'. Returns false to stop the pipeline here, either because
+    // the message was rejected (see MessageContext.reject) or because the stage consumed it.
+    boolean process(MessageContext context);
+
+    // Called once when the server shuts down, e.g. to flush queued work.
+    default void close() {}
+}
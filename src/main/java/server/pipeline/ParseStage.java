@@ -0,0 +1,24 @@
+package server.pipeline;
+
+import common.protocols.MessageProtocol;
+
+// Turns a text SEND_MSG command into a MessageModel. Messages decoded by the binary
+// transport pass straight through. Unparseable commands are dropped silently, as before.
+// Client messages get the authenticated user as sender, whatever the client put there, so
+// nobody can post (and then edit) as someone else. The persist stage rejects reused IDs.
+public class ParseStage implements MessageStage {
+    private final MessageProtocol protocol = new MessageProtocol();
+
+    @Override
+    public String name() { return "parse"; }
+
+    @Override
+    public boolean process(MessageContext context) {
+        if (context.message == null && context.rawCommand != null) {
+            context.message = protocol.parseMessage(context.rawCommand);
+        }
+        if (context.message == null) return false;
+        if (context.senderName != null) context.message.sender = context.senderName;
+        return true;
+    }
+}
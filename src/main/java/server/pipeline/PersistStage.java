@@ -0,0 +1,22 @@
+package server.pipeline;
+
+import common.models.Datahandler;
+
+// Stores the message (and journals it, if persistence is on) before anyone sees it.
+// A message whose ID is already taken is rejected rather than replacing the stored one.
+public class PersistStage implements MessageStage {
+    private final Datahandler datahandler;
+
+    public PersistStage(Datahandler datahandler) {
+        this.datahandler = datahandler;
+    }
+
+    @Override
+    public String name() { return "persist"; }
+
+    @Override
+    public boolean process(MessageContext context) {
+        if (!datahandler.addMessageToArray(context.message)) return context.reject("Duplicate message ID.");
+        return true;
+    }
+}
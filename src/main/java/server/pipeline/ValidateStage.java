@@ -0,0 +1,30 @@
+package server.pipeline;
+
+import server.utils.ServerConfig;
+
+// Rejects messages without content or longer than -Dchat.message.maxChars (default 4000).
+// Edits are held to the same rules through check().
+public class ValidateStage implements MessageStage {
+    private static final int MAX_CHARS = Math.max(1, ServerConfig.getInt("chat.message.maxChars", 4000));
+
+    @Override
+    public String name() { return "validate"; }
+
+    @Override
+    public boolean process(MessageContext context) {
+        String problem = check(context.message.content);
+        if (problem != null) return context.reject(problem);
+        return true;
+    }
+
+    // Why the content may not be sent, or null if it may.
+    public static String check(String content) {
+        if (content == null || content.isEmpty()) {
+            return "Empty message.";
+        }
+        if (content.length() > MAX_CHARS) {
+            return "Message too long (" + content.length() + " characters, the limit is " + MAX_CHARS + ").";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+package server.storage;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+// A hash index from message ID to a packed long (room ordinal + slot), without boxing.
+// Entries live in primitive arrays: two longs for the UUID and one for the value, instead of a
+// map node, a UUID object and a value object per message. The table is split into independently
+// locked stripes so concurrent writers rarely contend.
+public final class MessageIdIndex {
+    public static final long ABSENT = -1L;
+    // Holds an ID for a message that is still being stored. get and remove report it as ABSENT.
+    private static final long RESERVED = Long.MAX_VALUE;
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public MessageIdIndex() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    public long get(UUID id) {
+        long hash = hash(id);
+        long value = stripeFor(hash).get(id.getMostSignificantBits(), id.getLeastSignificantBits(), hash);
+        return value == RESERVED ? ABSENT : value;
+    }
+
+    // True if the ID has a value or is reserved.
+    public boolean contains(UUID id) {
+        long hash = hash(id);
+        return stripeFor(hash).get(id.getMostSignificantBits(), id.getLeastSignificantBits(), hash) != ABSENT;
+    }
+
+    // Values must not be negative. Replaces any existing value or reservation.
+    public void put(UUID id, long value) {
+        long hash = hash(id);
+        stripeFor(hash).put(id.getMostSignificantBits(), id.getLeastSignificantBits(), hash, value);
+    }
+
+    // Claims the ID until put or release is called. Returns false, changing nothing, if the ID
+    // already has a value or a reservation. Atomic, so of two concurrent callers only one wins.
+    public boolean reserve(UUID id) {
+        long hash = hash(id);
+        return stripeFor(hash).putIfAbsent(id.getMostSignificantBits(), id.getLeastSignificantBits(), hash, RESERVED);
+    }
+
+    // Gives up a reservation. Does nothing if the ID has been given a value since.
+    public void release(UUID id) {
+        long hash = hash(id);
+        stripeFor(hash).removeIfEqual(id.getMostSignificantBits(), id.getLeastSignificantBits(), hash, RESERVED);
+    }
+
+    // Returns the removed value, or ABSENT.
+    public long remove(UUID id) {
+        long hash = hash(id);
+        long value = stripeFor(hash).remove(id.getMostSignificantBits(), id.getLeastSignificantBits(), hash);
+        return value == RESERVED ? ABSENT : value;
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) stripe.clear();
+    }
+
+    public long size() {
+        long total = 0;
+        for (Stripe stripe : stripes) total += stripe.size();
+        return total;
+    }
+
+    // Approximate heap used by the tables.
+    public long footprintBytes() {
+        long total = 0;
+        for (Stripe stripe : stripes) total += stripe.footprintBytes();
+        return total;
+    }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[(int) (hash & (STRIPES - 1))];
+    }
+
+    private static long hash(UUID id) {
+        return hash(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    private static long hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return h ^ (h >>> 29);
+    }
+
+    // Open addressing with linear probing. Deletions shift later entries back, so no tombstones.
+    private static final class Stripe {
+        private long[] highs = new long[16];
+        private long[] lows = new long[16];
+        // ABSENT marks a free slot.
+        private long[] values = newValues(16);
+        private int size;
+
+        private static long[] newValues(int capacity) {
+            long[] values = new long[capacity];
+            Arrays.fill(values, ABSENT);
+            return values;
+        }
+
+        synchronized long get(long high, long low, long hash) {
+            int mask = values.length - 1;
+            for (int i = home(hash, mask); values[i] != ABSENT; i = (i + 1) & mask) {
+                if (highs[i] == high && lows[i] == low) return values[i];
+            }
+            return ABSENT;
+        }
+
+        synchronized void put(long high, long low, long hash, long value) {
+            if ((size + 1) * 4L > values.length * 3L) resize(values.length * 2);
+            int mask = values.length - 1;
+            int i = home(hash, mask);
+            while (values[i] != ABSENT) {
+                if (highs[i] == high && lows[i] == low) { values[i] = value; return; }
+                i = (i + 1) & mask;
+            }
+            highs[i] = high;
+            lows[i] = low;
+            values[i] = value;
+            size++;
+        }
+
+        synchronized boolean putIfAbsent(long high, long low, long hash, long value) {
+            if (get(high, low, hash) != ABSENT) return false;
+            put(high, low, hash, value);
+            return true;
+        }
+
+        synchronized void removeIfEqual(long high, long low, long hash, long expected) {
+            if (get(high, low, hash) == expected) remove(high, low, hash);
+        }
+
+        synchronized long remove(long high, long low, long hash) {
+            int mask = values.length - 1;
+            int i = home(hash, mask);
+            while (values[i] != ABSENT) {
+                if (highs[i] == high && lows[i] == low) {
+                    long removed = values[i];
+                    shiftBack(i, mask);
+                    size--;
+                    return removed;
+                }
+                i = (i + 1) & mask;
+            }
+            return ABSENT;
+        }
+
+        // Closes the gap at 'free' by moving back any later entry whose probe chain crosses it.
+        private void shiftBack(int free, int mask) {
+            int i = free;
+            while (true) {
+                i = (i + 1) & mask;
+                if (values[i] == ABSENT) break;
+                int home = home(hash(highs[i], lows[i]), mask);
+                boolean movable = free <= i ? (home <= free || home > i) : (home <= free && home > i);
+                if (movable) {
+                    highs[free] = highs[i];
+                    lows[free] = lows[i];
+                    values[free] = values[i];
+                    free = i;
+                }
+            }
+            values[free] = ABSENT;
+        }
+
+        private void resize(int capacity) {
+            long[] oldHighs = highs, oldLows = lows, oldValues = values;
+            highs = new long[capacity];
+            lows = new long[capacity];
+            values = newValues(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] == ABSENT) continue;
+                int i = home(hash(oldHighs[j], oldLows[j]), mask);
+                while (values[i] != ABSENT) i = (i + 1) & mask;
+                highs[i] = oldHighs[j];
+                lows[i] = oldLows[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        synchronized void clear() {
+            highs = new long[16];
+            lows = new long[16];
+            values = newValues(16);
+            size = 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long footprintBytes() {
+            return 3L * 8 * values.length;
+        }
+
+        // The stripe was chosen with the low bits of the hash, so probing starts from the high bits.
+        private static int home(long hash, int mask) {
+            return (int) (hash >>> 40) & mask;
+        }
+    }
+}
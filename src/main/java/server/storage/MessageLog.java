@@ -0,0 +1,577 @@
+package server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import common.models.MessageModel;
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+import server.utils.ServerConfig;
+
+// A durable, append-only journal of chat messages.
+// Records are appended to fixed-size segment files (00000000000000000001.seg, ...) and every record
+// carries a CRC, so a write torn by a crash is detected and cut off at the next start-up.
+// Edits and deletes are journaled as their own records; a background compactor later folds them
+// into the messages they refer to and reclaims the space.
+//
+// Record layout: [int length][int crc32][byte type][payload], where length and crc cover type + payload.
+public class MessageLog implements Closeable {
+
+    // How hard an append tries to reach the disk before returning.
+    public enum FsyncMode {
+        NONE,   // Leave it to the OS. Fastest; a power loss can lose recently written messages.
+        GROUP,  // A background thread forces the log every chat.store.groupCommitMs. Bounded loss window.
+        ALWAYS  // Force after every record. Nothing acknowledged is ever lost, at the cost of one fsync per message.
+    }
+
+    // Receives the log's contents, oldest first, when the server starts.
+    public interface ReplayHandler {
+        void onAppend(MessageModel message);
+        void onEdit(UUID messageId, LocalDateTime timestamp, String content);
+        void onDelete(UUID messageId);
+    }
+
+    static final byte PUT = 1;
+    static final byte EDIT = 2;
+    static final byte DELETE = 3;
+    // Length (of type + payload) and CRC, each an int; the type byte follows.
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final FsyncMode fsyncMode;
+    private final long groupCommitMillis;
+    private final long compactIntervalMillis;
+    private final long compactMinRecords;
+
+    // Guards the active file and the fields below. A lock instead of 'synchronized' so virtual
+    // threads waiting on a write or fsync here do not pin their carrier threads.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Segment id -> file, oldest first. Guarded by 'lock'.
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel active;
+    private long activeId;
+    private long activePosition;
+    // Edit and delete records written since the last compaction; a rough measure of garbage.
+    private long journalRecords;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+    private boolean compacting;
+
+    public MessageLog(Path directory, long segmentBytes, FsyncMode fsyncMode, long groupCommitMillis,
+                      long compactIntervalMillis, long compactMinRecords) {
+        this.directory = directory;
+        this.segmentBytes = Math.min(Integer.MAX_VALUE, Math.max(4096, segmentBytes));
+        this.fsyncMode = fsyncMode;
+        this.groupCommitMillis = Math.max(1, groupCommitMillis);
+        this.compactIntervalMillis = compactIntervalMillis;
+        this.compactMinRecords = Math.max(1, compactMinRecords);
+    }
+
+    // Builds a log from the chat.store.* system properties.
+    public static MessageLog fromConfig() {
+        FsyncMode mode;
+        try {
+            mode = FsyncMode.valueOf(ServerConfig.getString("chat.store.fsync", "GROUP").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            mode = FsyncMode.GROUP;
+        }
+        return new MessageLog(
+                Paths.get(ServerConfig.getString("chat.store.dir", "data/messages")),
+                ServerConfig.getLong("chat.store.segmentMb", 64) * 1024 * 1024,
+                mode,
+                ServerConfig.getLong("chat.store.groupCommitMs", 50),
+                ServerConfig.getLong("chat.store.compactIntervalMs", 60_000),
+                ServerConfig.getLong("chat.store.compactMinRecords", 10_000));
+    }
+
+    // Validates every segment, truncates a torn tail, hands all intact records to the handler
+    // and opens the log for appending. Must be called once, before the first append.
+    public void recover(ReplayHandler handler) throws IOException {
+        lock.lock();
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(COMPACT_SUFFIX)) {
+                        // Output of a compaction that never finished; the originals are still in place.
+                        Files.deleteIfExists(file);
+                    } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                        } catch (NumberFormatException e) {
+                            Logger.warning(LogEvent.DATABASE, "Ignoring unexpected file in message store: {}", file);
+                        }
+                    }
+                }
+            }
+
+            // Edits and deletes still in the log are garbage that compaction can reclaim.
+            ReplayHandler counting = new ReplayHandler() {
+                @Override public void onAppend(MessageModel message) { handler.onAppend(message); }
+                @Override public void onEdit(UUID messageId, LocalDateTime timestamp, String content) {
+                    journalRecords++;
+                    handler.onEdit(messageId, timestamp, content);
+                }
+                @Override public void onDelete(UUID messageId) {
+                    journalRecords++;
+                    handler.onDelete(messageId);
+                }
+            };
+            long records = 0;
+            for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+                records += replaySegment(segment.getValue(), counting);
+            }
+
+            if (segments.isEmpty()) {
+                openSegment(1);
+            } else {
+                activeId = segments.lastKey();
+                active = FileChannel.open(segments.get(activeId), StandardOpenOption.WRITE);
+                activePosition = active.size();
+            }
+            Logger.info(LogEvent.DATABASE, "Message log recovered {} records from {} segment(s) in " + directory, records, segments.size());
+            startBackgroundThreads();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void append(MessageModel message) throws IOException {
+        write(encodePut(message), 0);
+    }
+
+    // Appends several messages with one lock acquisition, one write per segment they land in and,
+    // with FsyncMode.ALWAYS, a single fsync for the whole batch.
+    public void appendAll(List<MessageModel> messages) throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new ClosedChannelException();
+            List<ByteBuffer> records = new ArrayList<>(messages.size());
+            for (MessageModel message : messages) {
+                ByteBuffer record = encodePut(message);
+                record.flip();
+                records.add(record);
+            }
+            int start = 0;
+            while (start < records.size()) {
+                if (activePosition > 0 && activePosition + records.get(start).remaining() > segmentBytes) {
+                    rollSegment();
+                }
+                // Take as many records as fit in the active segment (at least one) and write them together.
+                long room = segmentBytes - activePosition;
+                long bytes = 0;
+                int end = start;
+                while (end < records.size() && (end == start || bytes + records.get(end).remaining() <= room)) {
+                    bytes += records.get(end).remaining();
+                    end++;
+                }
+                ByteBuffer chunk = ByteBuffer.allocate((int) bytes);
+                for (int i = start; i < end; i++) chunk.put(records.get(i));
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    activePosition += active.write(chunk, activePosition);
+                }
+                start = end;
+            }
+            if (fsyncMode == FsyncMode.ALWAYS) {
+                active.force(false);
+            } else {
+                dirty = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void appendEdit(UUID messageId, LocalDateTime timestamp, String content) throws IOException {
+        byte[] text = utf8(content);
+        ByteBuffer record = newRecord(EDIT, 16 + 12 + sizeOf(text));
+        putUuid(record, messageId);
+        putTimestamp(record, timestamp);
+        putBytes(record, text);
+        write(sealRecord(record), 1);
+    }
+
+    public void appendDelete(UUID messageId) throws IOException {
+        ByteBuffer record = newRecord(DELETE, 16);
+        putUuid(record, messageId);
+        write(sealRecord(record), 1);
+    }
+
+    // Journals several deletions with one write and, with FsyncMode.ALWAYS, one fsync.
+    public void appendDeletes(List<UUID> messageIds) throws IOException {
+        if (messageIds.isEmpty()) return;
+        ByteBuffer batch = ByteBuffer.allocate(messageIds.size() * (RECORD_HEADER + 1 + 16));
+        for (UUID messageId : messageIds) {
+            ByteBuffer record = newRecord(DELETE, 16);
+            putUuid(record, messageId);
+            sealRecord(record).flip();
+            batch.put(record);
+        }
+        write(batch, messageIds.size());
+    }
+
+    // Forces everything written so far to disk and closes the active segment.
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            try {
+                if (active != null) {
+                    active.force(false);
+                    active.close();
+                }
+            } catch (IOException e) {
+                Logger.error(LogEvent.DATABASE, "Failed to close message log", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 'journalCount' is the number of edit/delete records in the buffer, counted towards compaction.
+    private void write(ByteBuffer record, int journalCount) throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new ClosedChannelException();
+            record.flip();
+            int size = record.remaining();
+            if (activePosition > 0 && activePosition + size > segmentBytes) {
+                rollSegment();
+            }
+            while (record.hasRemaining()) {
+                activePosition += active.write(record, activePosition);
+            }
+            journalRecords += journalCount;
+            if (fsyncMode == FsyncMode.ALWAYS) {
+                active.force(false);
+            } else {
+                dirty = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (fsyncMode != FsyncMode.NONE) active.force(false);
+        active.close();
+        openSegment(activeId + 1);
+    }
+
+    private void openSegment(long id) throws IOException {
+        Path file = segmentPath(id, SEGMENT_SUFFIX);
+        active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        activeId = id;
+        activePosition = active.size();
+        segments.put(id, file);
+    }
+
+    private Path segmentPath(long id, String suffix) {
+        return directory.resolve(String.format("%020d", id) + suffix);
+    }
+
+    // Reads one segment through a read-only memory mapping. Stops at the first record that is
+    // incomplete or fails its CRC and cuts the file off there.
+    private long replaySegment(Path file, ReplayHandler handler) throws IOException {
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) return 0;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            int position = 0;
+            while (position < size) {
+                int valid = validRecordLength(map, position, crc);
+                if (valid < 0) {
+                    Logger.warning(LogEvent.DATABASE, "Torn or corrupt record in {} at offset {}; truncating " + (size - position) + " byte(s)", file.getFileName(), position);
+                    channel.truncate(position);
+                    channel.force(true);
+                    break;
+                }
+                ByteBuffer record = map.duplicate();
+                record.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + valid);
+                dispatch(record, handler);
+                position += RECORD_HEADER + valid;
+                records++;
+            }
+        }
+        return records;
+    }
+
+    // Returns the length (type + payload) of the record at 'position', or -1 if it is not intact.
+    private static int validRecordLength(ByteBuffer map, int position, CRC32 crc) {
+        if (map.limit() - position < RECORD_HEADER) return -1;
+        int length = map.getInt(position);
+        int expectedCrc = map.getInt(position + 4);
+        if (length < 1 || length > map.limit() - position - RECORD_HEADER) return -1;
+        ByteBuffer body = map.duplicate();
+        body.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue() == expectedCrc ? length : -1;
+    }
+
+    private static void dispatch(ByteBuffer record, ReplayHandler handler) {
+        byte type = record.get();
+        switch (type) {
+            case PUT:
+                handler.onAppend(new MessageModel(getUuid(record), getTimestamp(record), getString(record),
+                        getString(record), getUuid(record), getString(record)));
+                break;
+            case EDIT:
+                handler.onEdit(getUuid(record), getTimestamp(record), getString(record));
+                break;
+            case DELETE:
+                handler.onDelete(getUuid(record));
+                break;
+            default:
+                Logger.warning(LogEvent.DATABASE, "Skipping message log record of unknown type {}", type);
+        }
+    }
+
+    private void startBackgroundThreads() {
+        if (fsyncMode == FsyncMode.GROUP) {
+            Thread sync = new Thread(this::runGroupCommit, "message-log-sync");
+            sync.setDaemon(true);
+            sync.start();
+        }
+        if (compactIntervalMillis > 0) {
+            Thread compactor = new Thread(this::runCompactor, "message-log-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    // Group commit: one fsync covers every record written during the last interval.
+    private void runGroupCommit() {
+        while (!closed) {
+            try {
+                Thread.sleep(groupCommitMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!dirty) continue;
+            dirty = false;
+            FileChannel channel;
+            lock.lock();
+            try {
+                channel = active;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was rolled (and forced) or the log was closed in the meantime.
+            } catch (IOException e) {
+                Logger.error(LogEvent.DATABASE, "Group commit failed", e);
+            }
+        }
+    }
+
+    private void runCompactor() {
+        while (!closed) {
+            try {
+                Thread.sleep(compactIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                compactIfNeeded();
+            } catch (IOException e) {
+                Logger.error(LogEvent.DATABASE, "Message log compaction failed", e);
+            }
+        }
+    }
+
+    // Rewrites all sealed segments (everything but a fresh active one) with edits folded into their
+    // messages and deleted messages dropped. The output replaces the inputs file by file, so a
+    // crash halfway leaves a log that replays to the same state: replaying a message twice
+    // simply overwrites it.
+    public void compactIfNeeded() throws IOException {
+        List<Map.Entry<Long, Path>> sealed;
+        lock.lock();
+        try {
+            if (compacting || closed || journalRecords < compactMinRecords) return;
+            // Seal the active segment first so recent edits and deletes are folded in as well.
+            if (activePosition > 0) rollSegment();
+            compacting = true;
+            journalRecords = 0;
+            sealed = new ArrayList<>(segments.headMap(activeId, false).entrySet());
+        } finally {
+            lock.unlock();
+        }
+        try {
+            long started = System.nanoTime();
+            long bytesBefore = 0;
+            Map<UUID, MessageModel> live = new LinkedHashMap<>();
+            ReplayHandler fold = new ReplayHandler() {
+                @Override public void onAppend(MessageModel message) { live.put(message.messageId, message); }
+                @Override public void onEdit(UUID messageId, LocalDateTime timestamp, String content) {
+                    MessageModel message = live.get(messageId);
+                    if (message != null) { message.timestamp = timestamp; message.content = content; }
+                }
+                @Override public void onDelete(UUID messageId) { live.remove(messageId); }
+            };
+            for (Map.Entry<Long, Path> segment : sealed) {
+                bytesBefore += Files.size(segment.getValue());
+                replaySegment(segment.getValue(), fold);
+            }
+
+            // Write the surviving messages into temporary files, reusing the sealed segment ids.
+            List<Path> outputs = new ArrayList<>();
+            long bytesAfter = 0;
+            FileChannel out = null;
+            long outPosition = 0;
+            try {
+                for (MessageModel message : live.values()) {
+                    ByteBuffer record = encodePut(message);
+                    record.flip();
+                    if (out == null || (outPosition > 0 && outPosition + record.remaining() > segmentBytes)) {
+                        if (out != null) { out.force(false); out.close(); }
+                        Path tmp = segmentPath(sealed.get(outputs.size()).getKey(), SEGMENT_SUFFIX + COMPACT_SUFFIX);
+                        out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        outputs.add(tmp);
+                        outPosition = 0;
+                    }
+                    while (record.hasRemaining()) outPosition += out.write(record, outPosition);
+                    bytesAfter += record.limit();
+                }
+            } finally {
+                if (out != null) { out.force(false); out.close(); }
+            }
+
+            lock.lock();
+            try {
+                for (int i = 0; i < sealed.size(); i++) {
+                    Path target = sealed.get(i).getValue();
+                    if (i < outputs.size()) {
+                        Files.move(outputs.get(i), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.deleteIfExists(target);
+                        segments.remove(sealed.get(i).getKey());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            Logger.info(LogEvent.DATABASE, String.format("Compacted %d segment(s) into %d: %d -> %d bytes in %.1f ms",
+                    sealed.size(), outputs.size(), bytesBefore, bytesAfter, (System.nanoTime() - started) / 1_000_000.0));
+        } finally {
+            lock.lock();
+            try {
+                compacting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static ByteBuffer encodePut(MessageModel message) {
+        byte[] type = utf8(message.type);
+        byte[] sender = utf8(message.sender);
+        byte[] content = utf8(message.content);
+        ByteBuffer record = newRecord(PUT, 16 + 12 + sizeOf(type) + sizeOf(sender) + 16 + sizeOf(content));
+        putUuid(record, message.messageId);
+        putTimestamp(record, message.timestamp);
+        putBytes(record, type);
+        putBytes(record, sender);
+        putUuid(record, message.chatroomId);
+        putBytes(record, content);
+        return sealRecord(record);
+    }
+
+    // Allocates a record with room for the header and positions it at the payload.
+    private static ByteBuffer newRecord(byte type, int payloadLength) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + 1 + payloadLength);
+        record.putInt(1 + payloadLength);
+        record.putInt(0); // CRC, filled in by sealRecord
+        record.put(type);
+        return record;
+    }
+
+    // Computes the CRC over type + payload once the payload is complete.
+    private static ByteBuffer sealRecord(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, record.position() - RECORD_HEADER);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID id) {
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    // Timestamps are zone-less LocalDateTimes; they are stored as UTC-epoch seconds + nanos so
+    // they come back exactly as written regardless of the server's time zone.
+    private static void putTimestamp(ByteBuffer buffer, LocalDateTime timestamp) {
+        LocalDateTime value = timestamp != null ? timestamp : LocalDateTime.now();
+        buffer.putLong(value.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(value.getNano());
+    }
+
+    private static LocalDateTime getTimestamp(ByteBuffer buffer) {
+        long seconds = buffer.getLong();
+        int nanos = buffer.getInt();
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    // Length-prefixed UTF-8; a length of -1 encodes null.
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,36 @@
+package server.storage;
+
+import server.utils.ServerConfig;
+
+// Limits on how much history a room keeps. A limit of 0 means "no limit".
+// The oldest messages are evicted first once any limit is exceeded.
+public final class RetentionPolicy {
+    public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0);
+
+    private final int maxMessages;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+
+    public RetentionPolicy(int maxMessages, long maxAgeMillis, long maxBytes) {
+        this.maxMessages = Math.max(0, maxMessages);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    // Reads <prefix>.maxMessages, <prefix>.maxAgeMs and <prefix>.maxBytes, falling back to 'defaults'
+    // for any that are not set.
+    public static RetentionPolicy fromConfig(String prefix, RetentionPolicy defaults) {
+        return new RetentionPolicy(
+                ServerConfig.getInt(prefix + ".maxMessages", defaults.maxMessages),
+                ServerConfig.getLong(prefix + ".maxAgeMs", defaults.maxAgeMillis),
+                ServerConfig.getLong(prefix + ".maxBytes", defaults.maxBytes));
+    }
+
+    public int getMaxMessages() { return maxMessages; }
+    public long getMaxAgeMillis() { return maxAgeMillis; }
+    public long getMaxBytes() { return maxBytes; }
+
+    public boolean isUnlimited() {
+        return maxMessages == 0 && maxAgeMillis == 0 && maxBytes == 0;
+    }
+}
@@ -0,0 +1,401 @@
+package server.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import common.models.MessageModel;
+import server.utils.ServerConfig;
+
+// The message history of a single chat room, oldest first.
+// Keeping each room in its own store means reading a room's recent messages only touches that
+// room, no matter how much history the rest of the server holds.
+//
+// Every message gets a per-room sequence number that doubles as its slot: seq = baseSeq + index.
+// Deleting a message leaves a tombstone (an empty slot) instead of shifting anything, so sequence
+// numbers never move. They serve as pagination cursors and as the target of the message ID index.
+//
+// Messages are stored column-wise in primitive arrays rather than as MessageModel objects:
+// IDs as two longs, timestamps as epoch milliseconds, sender and type as dictionary codes and the
+// content as UTF-8 bytes. The room ID is implied by the room. A MessageModel is only created when a
+// message is actually read, and it is a copy: changing it does not change the stored message.
+//
+// Retention evicts from the oldest end. Evicted slots are skipped by advancing 'head'; once enough
+// of them pile up, the columns are shifted down in one go, so eviction is amortized O(1) per message.
+//
+// Each room also keeps a SearchIndex over its message text (-Dchat.search.enabled, default true).
+// Edits add postings, deletes and evictions leave stale ones behind; once stale messages outnumber
+// live ones the index is rebuilt from the columns, which keeps that amortized O(1) as well.
+public class RoomHistory {
+    private static final boolean SEARCH_ENABLED = ServerConfig.getBoolean("chat.search.enabled", true);
+    private static final long FIRST_SEQ = 1;
+    // Marks a deleted slot in the types column.
+    private static final int TOMBSTONE = -2;
+    // Array header + reference + length, rounded, as a rough per-array heap cost.
+    private static final int ARRAY_OVERHEAD = 16;
+    // Column cost per slot: three long columns, two int columns and one reference.
+    private static final int SLOT_BYTES = 3 * 8 + 2 * 4 + 8;
+
+    private final UUID roomId;
+    private final StringDictionary dictionary;
+    private long[] idHighs = new long[16];
+    private long[] idLows = new long[16];
+    private long[] timestamps = new long[16];
+    private int[] senders = new int[16];
+    private int[] types = new int[16];
+    private byte[][] contents = new byte[16][];
+    // Live slots are [head, count); seq = baseSeq + index.
+    private int head;
+    private int count;
+    private long baseSeq = FIRST_SEQ;
+    private int liveCount;
+    private long contentBytes;
+    private long evictedCount;
+    private long evictedBytes;
+    private final SearchIndex searchIndex = SEARCH_ENABLED ? new SearchIndex() : null;
+    // Messages deleted, evicted or edited since the search index was last built.
+    private int staleCount;
+    // Last append or read, used to pick the coldest rooms when the global heap budget is exceeded.
+    private volatile long lastAccessMillis = System.currentTimeMillis();
+    // Bumped on every change so cached renderings of this history can tell they are stale.
+    private volatile long modCount;
+
+    public RoomHistory(UUID roomId, StringDictionary dictionary) {
+        this.roomId = roomId;
+        this.dictionary = dictionary;
+    }
+
+    public UUID getRoomId() { return roomId; }
+
+    public long modCount() { return modCount; }
+
+    public long getLastAccessMillis() { return lastAccessMillis; }
+
+    // Receives the IDs of the messages removed by one retention or budget eviction call.
+    public interface EvictionListener {
+        void onEvicted(List<UUID> messageIds);
+    }
+
+    // One page of history, oldest first, plus the cursors needed to continue in either direction.
+    public static final class Page {
+        public final List<MessageModel> messages;
+        // Sequence number to pass as "before" for the next older page, or -1 if there is none.
+        public final long olderCursor;
+        // Sequence number to pass as "after" for the next newer page, or -1 if there is none.
+        public final long newerCursor;
+
+        Page(List<MessageModel> messages, long olderCursor, long newerCursor) {
+            this.messages = messages;
+            this.olderCursor = olderCursor;
+            this.newerCursor = newerCursor;
+        }
+    }
+
+    // Appends a message and returns its sequence number.
+    public synchronized long append(MessageModel message) {
+        if (count == types.length) grow();
+        write(count, message);
+        count++;
+        liveCount++;
+        modCount++;
+        lastAccessMillis = System.currentTimeMillis();
+        long seq = baseSeq + count - 1;
+        if (searchIndex != null) searchIndex.add(seq, message.content);
+        return seq;
+    }
+
+    public synchronized MessageModel get(long seq) {
+        int index = indexOf(seq);
+        return index >= 0 && types[index] != TOMBSTONE ? view(index) : null;
+    }
+
+    // Puts a newer copy of a message into its existing slot (used when the log replays a message twice).
+    public synchronized void replace(long seq, MessageModel message) {
+        int index = indexOf(seq);
+        if (index >= 0 && types[index] != TOMBSTONE) {
+            contentBytes -= sizeOf(contents[index]);
+            write(index, message);
+            modCount++;
+            indexChanged(seq, message.content);
+        }
+    }
+
+    // Updates a message in place. Returns the edited message, or null if the slot is empty.
+    public synchronized MessageModel edit(long seq, String content, LocalDateTime timestamp) {
+        int index = indexOf(seq);
+        if (index < 0 || types[index] == TOMBSTONE) return null;
+        contentBytes -= sizeOf(contents[index]);
+        contents[index] = utf8(content);
+        contentBytes += sizeOf(contents[index]);
+        timestamps[index] = toMillis(timestamp);
+        modCount++;
+        indexChanged(seq, content);
+        return view(index);
+    }
+
+    // Replaces the message with a tombstone. O(1); nothing after it moves.
+    public synchronized MessageModel tombstone(long seq) {
+        int index = indexOf(seq);
+        if (index < 0 || types[index] == TOMBSTONE) return null;
+        MessageModel removed = view(index);
+        contentBytes -= sizeOf(contents[index]);
+        contents[index] = null;
+        types[index] = TOMBSTONE;
+        liveCount--;
+        modCount++;
+        indexChanged(seq, null);
+        return removed;
+    }
+
+    // The newest 'limit' messages.
+    public synchronized Page latest(int limit) {
+        lastAccessMillis = System.currentTimeMillis();
+        return collectBackward(count, limit);
+    }
+
+    // Up to 'limit' messages older than the cursor. O(limit) plus any tombstones skipped.
+    public synchronized Page before(long cursor, int limit) {
+        lastAccessMillis = System.currentTimeMillis();
+        return collectBackward(clampIndex(cursor - baseSeq), limit);
+    }
+
+    // Up to 'limit' messages newer than the cursor. O(limit) plus any tombstones skipped.
+    public synchronized Page after(long cursor, int limit) {
+        lastAccessMillis = System.currentTimeMillis();
+        return collectForward(clampIndex(cursor + 1 - baseSeq), limit);
+    }
+
+    // Up to 'limit' messages matching the query, newest first. Words must all occur; a word ending
+    // in '*' matches as a prefix. Only the postings of the rarest word are walked.
+    public synchronized List<MessageModel> search(String query, int limit) {
+        if (searchIndex == null) return Collections.emptyList();
+        lastAccessMillis = System.currentTimeMillis();
+        long[] seqs = searchIndex.search(SearchIndex.Query.parse(query), limit, this::contentOf);
+        List<MessageModel> results = new ArrayList<>(seqs.length);
+        for (long seq : seqs) results.add(view(indexOf(seq)));
+        return results;
+    }
+
+    private String contentOf(long seq) {
+        int index = indexOf(seq);
+        byte[] content = index >= 0 && types[index] != TOMBSTONE ? contents[index] : null;
+        return content == null ? null : new String(content, StandardCharsets.UTF_8);
+    }
+
+    // Records that a slot's text changed (null content: removed) and rebuilds the index once
+    // stale postings could make up half of it.
+    private void indexChanged(long seq, String content) {
+        if (searchIndex == null) return;
+        if (content != null) searchIndex.add(seq, content);
+        if (++staleCount > Math.max(1024, liveCount)) rebuildSearchIndex();
+    }
+
+    private void rebuildSearchIndex() {
+        searchIndex.clear();
+        for (int i = head; i < count; i++) {
+            if (types[i] != TOMBSTONE && contents[i] != null) {
+                searchIndex.add(baseSeq + i, new String(contents[i], StandardCharsets.UTF_8));
+            }
+        }
+        staleCount = 0;
+    }
+
+    private Page collectBackward(int end, int limit) {
+        List<MessageModel> page = new ArrayList<>(Math.min(limit, end));
+        int index = end;
+        while (index > head && page.size() < limit) {
+            if (types[--index] != TOMBSTONE) page.add(view(index));
+        }
+        Collections.reverse(page);
+        long older = index > head ? baseSeq + index : -1;
+        long newer = end > head && end < count ? baseSeq + end - 1 : -1;
+        return new Page(page, older, newer);
+    }
+
+    private Page collectForward(int start, int limit) {
+        List<MessageModel> page = new ArrayList<>(Math.min(limit, count - start));
+        int index = start;
+        while (index < count && page.size() < limit) {
+            if (types[index] != TOMBSTONE) page.add(view(index));
+            index++;
+        }
+        long older = start > head ? baseSeq + start : -1;
+        long newer = index < count ? baseSeq + index - 1 : -1;
+        return new Page(page, older, newer);
+    }
+
+    private int indexOf(long seq) {
+        long index = seq - baseSeq;
+        return index >= head && index < count ? (int) index : -1;
+    }
+
+    private int clampIndex(long index) {
+        return (int) Math.max(head, Math.min(count, index));
+    }
+
+    // Number of messages that have not been deleted.
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    public synchronized List<MessageModel> snapshot() {
+        List<MessageModel> live = new ArrayList<>(liveCount);
+        for (int i = head; i < count; i++) {
+            if (types[i] != TOMBSTONE) live.add(view(i));
+        }
+        return live;
+    }
+
+    // Approximate heap used by this room's history, including unused column capacity and the search index.
+    public synchronized long footprintBytes() {
+        return (long) types.length * SLOT_BYTES + contentBytes + (searchIndex == null ? 0 : searchIndex.footprintBytes());
+    }
+
+    // Heap attributable to the live messages alone; what a byte limit is compared against.
+    public synchronized long messageBytes() {
+        return (long) liveCount * SLOT_BYTES + contentBytes;
+    }
+
+    public synchronized long getEvictedCount() { return evictedCount; }
+
+    public synchronized long getEvictedBytes() { return evictedBytes; }
+
+    // Evicts the oldest messages while the policy is exceeded, but at most 'maxBatch' slots per
+    // call, so a room that is far over its limits is brought back in several small steps.
+    // The listener is told after the room's lock is released.
+    public int enforce(RetentionPolicy policy, long nowMillis, int maxBatch, EvictionListener listener) {
+        List<UUID> evicted = new ArrayList<>();
+        synchronized (this) {
+            // Timestamps are local wall-clock times, so the cutoff is converted the same way.
+            long oldestAllowed = policy.getMaxAgeMillis() <= 0 ? Long.MIN_VALUE
+                    : toMillis(LocalDateTime.ofInstant(Instant.ofEpochMilli(nowMillis - policy.getMaxAgeMillis()), ZoneId.systemDefault()));
+            int slots = 0;
+            while (head < count && slots < maxBatch) {
+                boolean tooMany = policy.getMaxMessages() > 0 && liveCount > policy.getMaxMessages();
+                boolean tooBig = policy.getMaxBytes() > 0 && messageBytes() > policy.getMaxBytes();
+                boolean tooOld = types[head] == TOMBSTONE || timestamps[head] < oldestAllowed;
+                if (!tooMany && !tooBig && !tooOld) break;
+                evictHead(evicted);
+                slots++;
+            }
+            if (slots > 0) afterEviction();
+        }
+        if (!evicted.isEmpty()) listener.onEvicted(evicted);
+        return evicted.size();
+    }
+
+    // Evicts the oldest messages regardless of policy until 'bytesToFree' of messageBytes() are
+    // freed, but at most 'maxBatch' slots. Returns the bytes freed. The listener is told after
+    // the room's lock is released.
+    public long evictOldest(long bytesToFree, int maxBatch, EvictionListener listener) {
+        List<UUID> evicted = new ArrayList<>();
+        long freed;
+        synchronized (this) {
+            long before = messageBytes();
+            int slots = 0;
+            while (head < count && slots < maxBatch && before - messageBytes() < bytesToFree) {
+                evictHead(evicted);
+                slots++;
+            }
+            if (slots > 0) afterEviction();
+            freed = before - messageBytes();
+        }
+        if (!evicted.isEmpty()) listener.onEvicted(evicted);
+        return freed;
+    }
+
+    private void evictHead(List<UUID> evicted) {
+        if (types[head] != TOMBSTONE) {
+            long bytes = sizeOf(contents[head]);
+            evicted.add(new UUID(idHighs[head], idLows[head]));
+            contentBytes -= bytes;
+            evictedBytes += bytes + SLOT_BYTES;
+            evictedCount++;
+            liveCount--;
+            staleCount++;
+            contents[head] = null;
+            types[head] = TOMBSTONE;
+        }
+        head++;
+    }
+
+    // Reclaims the evicted prefix of the columns once it makes up half of them.
+    private void afterEviction() {
+        modCount++;
+        if (searchIndex != null && staleCount > Math.max(1024, liveCount)) rebuildSearchIndex();
+        if (head < 1024 || head < count / 2) return;
+        int remaining = count - head;
+        System.arraycopy(idHighs, head, idHighs, 0, remaining);
+        System.arraycopy(idLows, head, idLows, 0, remaining);
+        System.arraycopy(timestamps, head, timestamps, 0, remaining);
+        System.arraycopy(senders, head, senders, 0, remaining);
+        System.arraycopy(types, head, types, 0, remaining);
+        System.arraycopy(contents, head, contents, 0, remaining);
+        Arrays.fill(contents, remaining, count, null);
+        baseSeq += head;
+        count = remaining;
+        head = 0;
+        // Give memory back if the room shrank a lot.
+        if (types.length > 64 && count < types.length / 4) resize(Math.max(64, count * 2));
+    }
+
+    private void write(int index, MessageModel message) {
+        idHighs[index] = message.messageId.getMostSignificantBits();
+        idLows[index] = message.messageId.getLeastSignificantBits();
+        timestamps[index] = toMillis(message.timestamp);
+        senders[index] = dictionary.encode(message.sender);
+        types[index] = dictionary.encode(message.type);
+        contents[index] = utf8(message.content);
+        contentBytes += sizeOf(contents[index]);
+    }
+
+    // Materializes the stored columns of one slot as a MessageModel.
+    private MessageModel view(int index) {
+        byte[] content = contents[index];
+        return new MessageModel(
+                new UUID(idHighs[index], idLows[index]),
+                fromMillis(timestamps[index]),
+                dictionary.decode(types[index]),
+                dictionary.decode(senders[index]),
+                roomId,
+                content == null ? null : new String(content, StandardCharsets.UTF_8));
+    }
+
+    private void grow() {
+        resize(types.length * 2);
+    }
+
+    private void resize(int capacity) {
+        idHighs = Arrays.copyOf(idHighs, capacity);
+        idLows = Arrays.copyOf(idLows, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        senders = Arrays.copyOf(senders, capacity);
+        types = Arrays.copyOf(types, capacity);
+        contents = Arrays.copyOf(contents, capacity);
+    }
+
+    // LocalDateTime has no zone; UTC is used purely as a fixed reference so values round-trip.
+    private static long toMillis(LocalDateTime timestamp) {
+        LocalDateTime value = timestamp != null ? timestamp : LocalDateTime.now();
+        return value.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long sizeOf(byte[] bytes) {
+        return bytes == null ? 0 : ((ARRAY_OVERHEAD + bytes.length + 7) & ~7L);
+    }
+}
@@ -0,0 +1,287 @@
+package server.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+// An incrementally maintained inverted index over one room's messages.
+// Each term maps to the sequence numbers of the messages containing it. Sequence numbers arrive in
+// increasing order, so posting lists are stored as varint-encoded deltas in blocks of BLOCK_SIZE,
+// each block remembering its first value. That keeps a posting at 1-2 bytes and lets queries walk
+// the blocks newest-first and stop as soon as enough results are found.
+//
+// Deletes, evictions and edits do not rewrite posting lists. Candidates are verified against the
+// current message text at query time, so stale postings only cost a skipped candidate; once there
+// are as many stale messages as live ones, the owner rebuilds the index.
+//
+// Not thread-safe; RoomHistory calls it under its own lock.
+public final class SearchIndex {
+    // Prefix queries expand to at most this many terms.
+    private static final int MAX_PREFIX_TERMS = 256;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int BLOCK_SIZE = 128;
+
+    // Exact lookups go through the hash map; the sorted set only serves prefix queries and
+    // changes only when a word is seen for the first time.
+    private final HashMap<String, PostingList> terms = new HashMap<>();
+    private final TreeSet<String> sortedTerms = new TreeSet<>();
+    private long postingBytes;
+
+    // Supplies the current text of a message for verification, or null if it no longer exists.
+    public interface ContentSource {
+        String contentOf(long seq);
+    }
+
+    // A parsed query: all terms must match; a term ending in '*' matches any word with that prefix.
+    public static final class Query {
+        final String[] words;
+        final boolean[] prefix;
+
+        private Query(String[] words, boolean[] prefix) {
+            this.words = words;
+            this.prefix = prefix;
+        }
+
+        public boolean isEmpty() {
+            return words.length == 0;
+        }
+
+        public static Query parse(String text) {
+            List<String> words = new ArrayList<>();
+            List<Boolean> prefixes = new ArrayList<>();
+            for (String raw : text.trim().split("\\s+")) {
+                boolean isPrefix = raw.endsWith("*");
+                List<String> tokens = tokenize(isPrefix ? raw.substring(0, raw.length() - 1) : raw);
+                for (int i = 0; i < tokens.size(); i++) {
+                    words.add(tokens.get(i));
+                    // Only the last token of a starred word is a prefix ("e-mai*" -> "e", "mai*").
+                    prefixes.add(isPrefix && i == tokens.size() - 1);
+                }
+            }
+            boolean[] prefix = new boolean[prefixes.size()];
+            for (int i = 0; i < prefix.length; i++) prefix[i] = prefixes.get(i);
+            return new Query(words.toArray(new String[0]), prefix);
+        }
+
+        // True if the text contains every term of the query.
+        boolean matches(String content) {
+            if (content == null) return false;
+            List<String> tokens = tokenize(content);
+            for (int i = 0; i < words.length; i++) {
+                boolean found = false;
+                for (String token : tokens) {
+                    if (prefix[i] ? token.startsWith(words[i]) : token.equals(words[i])) { found = true; break; }
+                }
+                if (!found) return false;
+            }
+            return true;
+        }
+    }
+
+    public void add(long seq, String content) {
+        if (content == null) return;
+        List<String> tokens = tokenize(content);
+        for (String token : tokens) {
+            PostingList list = terms.get(token);
+            if (list == null) {
+                list = new PostingList();
+                terms.put(token, list);
+                sortedTerms.add(token);
+            }
+            long before = list.bytes();
+            list.add(seq);
+            postingBytes += list.bytes() - before;
+        }
+    }
+
+    public void clear() {
+        terms.clear();
+        sortedTerms.clear();
+        postingBytes = 0;
+    }
+
+    // Returns up to 'limit' matching sequence numbers, newest first.
+    public long[] search(Query query, int limit, ContentSource source) {
+        if (query.isEmpty() || limit <= 0) return new long[0];
+        // Drive the search with the most selective term; the others are checked on the text.
+        List<PostingList> driver = null;
+        long driverSize = Long.MAX_VALUE;
+        for (int i = 0; i < query.words.length; i++) {
+            List<PostingList> lists = listsFor(query.words[i], query.prefix[i]);
+            long size = 0;
+            for (PostingList list : lists) size += list.size;
+            if (size == 0) return new long[0];
+            if (size < driverSize) { driver = lists; driverSize = size; }
+        }
+
+        long[] results = new long[limit];
+        int found = 0;
+        PriorityQueue<PostingList.Cursor> merge = new PriorityQueue<>((a, b) -> Long.compare(b.current, a.current));
+        for (PostingList list : driver) {
+            PostingList.Cursor cursor = list.descending();
+            if (cursor.advance()) merge.add(cursor);
+        }
+        long previous = -1;
+        while (!merge.isEmpty() && found < limit) {
+            PostingList.Cursor cursor = merge.poll();
+            long seq = cursor.current;
+            if (cursor.advance()) merge.add(cursor);
+            if (seq == previous) continue;
+            previous = seq;
+            if (query.matches(source.contentOf(seq))) results[found++] = seq;
+        }
+        return Arrays.copyOf(results, found);
+    }
+
+    public int termCount() {
+        return terms.size();
+    }
+
+    // Approximate heap: encoded postings plus a rough per-term cost for the key, map entry and tree node.
+    public long footprintBytes() {
+        return postingBytes + terms.size() * 160L;
+    }
+
+    private List<PostingList> listsFor(String word, boolean prefix) {
+        if (!prefix) {
+            PostingList list = terms.get(word);
+            return list == null ? new ArrayList<>() : List.of(list);
+        }
+        List<PostingList> lists = new ArrayList<>();
+        for (String term : sortedTerms.subSet(word, word + Character.MAX_VALUE)) {
+            lists.add(terms.get(term));
+            if (lists.size() == MAX_PREFIX_TERMS) break;
+        }
+        return lists;
+    }
+
+    // Lower-cased runs of letters and digits.
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // The postings of one term. Values appended in increasing order go into delta-encoded blocks;
+    // the rare out-of-order value (a message edited to contain a new word) goes into a small side array.
+    static final class PostingList {
+        private byte[] data = new byte[8];
+        private int length;
+        private long[] blockFirst = new long[1];
+        private int[] blockOffset = new int[1];
+        private int[] blockCount = new int[1];
+        private int blocks;
+        private long last = -1;
+        private long[] unordered;
+        private int unorderedCount;
+        int size;
+
+        void add(long seq) {
+            // A word repeated in one message is only posted once.
+            if (seq == last || (unorderedCount > 0 && unordered[unorderedCount - 1] == seq)) return;
+            size++;
+            if (seq < last) {
+                if (unordered == null) unordered = new long[4];
+                if (unorderedCount == unordered.length) unordered = Arrays.copyOf(unordered, unorderedCount * 2);
+                unordered[unorderedCount++] = seq;
+                return;
+            }
+            if (blocks == 0 || blockCount[blocks - 1] == BLOCK_SIZE) {
+                if (blocks == blockFirst.length) {
+                    blockFirst = Arrays.copyOf(blockFirst, blocks * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+                    blockCount = Arrays.copyOf(blockCount, blocks * 2);
+                }
+                blockFirst[blocks] = seq;
+                blockOffset[blocks] = length;
+                blockCount[blocks] = 1;
+                blocks++;
+            } else {
+                writeVarLong(seq - last);
+                blockCount[blocks - 1]++;
+            }
+            last = seq;
+        }
+
+        long bytes() {
+            return data.length + blockFirst.length * 16L + (unordered == null ? 0 : unordered.length * 8L);
+        }
+
+        private void writeVarLong(long value) {
+            if (length + 10 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        Cursor descending() {
+            return new Cursor();
+        }
+
+        // Walks the postings from the newest to the oldest, one decoded block at a time.
+        final class Cursor {
+            long current;
+            private final long[] block = new long[Math.min(BLOCK_SIZE, size)];
+            private int blockIndex = blocks;
+            private int position = 0;
+            private final long[] extra;
+            private int extraPosition;
+
+            Cursor() {
+                extra = unorderedCount == 0 ? new long[0] : Arrays.copyOf(unordered, unorderedCount);
+                Arrays.sort(extra);
+                extraPosition = extra.length - 1;
+            }
+
+            boolean advance() {
+                if (position == 0 && blockIndex > 0) decode(--blockIndex);
+                long fromBlocks = position > 0 ? block[position - 1] : -1;
+                long fromExtra = extraPosition >= 0 ? extra[extraPosition] : -1;
+                if (fromBlocks < 0 && fromExtra < 0) return false;
+                if (fromBlocks >= fromExtra) {
+                    current = fromBlocks;
+                    position--;
+                } else {
+                    current = fromExtra;
+                    extraPosition--;
+                }
+                return true;
+            }
+
+            private void decode(int index) {
+                int offset = blockOffset[index];
+                long value = blockFirst[index];
+                block[0] = value;
+                for (int i = 1; i < blockCount[index]; i++) {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[offset++];
+                        delta |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    value += delta;
+                    block[i] = value;
+                }
+                position = blockCount[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package server.storage;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps frequently repeated strings (sender names, message types) to small integer codes,
+// so history stores one int per message instead of its own copy of the string.
+public final class StringDictionary {
+    public static final int NULL_CODE = -1;
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    public int encode(String value) {
+        if (value == null) return NULL_CODE;
+        Integer code = codes.get(value);
+        return code != null ? code : add(value);
+    }
+
+    public String decode(int code) {
+        return code == NULL_CODE ? null : values[code];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized int add(String value) {
+        Integer existing = codes.get(value);
+        if (existing != null) return existing;
+        String[] current = values;
+        if (size == current.length) current = Arrays.copyOf(current, size * 2);
+        current[size] = value;
+        // Publish the array before the code so a reader that finds the code also finds the string.
+        values = current;
+        codes.put(value, size);
+        return size++;
+    }
+}
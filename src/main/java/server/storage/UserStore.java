@@ -0,0 +1,339 @@
+package server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import server.utils.Logger;
+import server.utils.Logger.LogEvent;
+import server.utils.ServerConfig;
+
+// Durable storage for the user directory: a snapshot of all users plus an append-only log of the
+// registrations, renames and removals made since.
+// Log records use the same framing as the MessageLog ([int length][int crc32][byte type][payload]),
+// so a record torn by a crash is detected and cut off at start-up.
+//
+// Logs are numbered generations (00000000000000000001.log, ...). A snapshot is taken by switching
+// appends to a new generation and then writing every user to users.snapshot, tagged with that
+// generation; once the snapshot is safely renamed into place, the older generations are deleted.
+// Loading reads the snapshot and replays only the generations from its tag onwards, so start-up
+// time depends on the number of users, not on how many changes were ever made.
+public class UserStore implements Closeable {
+
+    // Receives the stored directory, oldest change first, when the server starts.
+    public interface ReplayHandler {
+        void onCreate(UUID userId, String username);
+        void onRename(UUID userId, String newUsername);
+        void onRemove(UUID userId);
+    }
+
+    static final byte CREATE = 1;
+    static final byte RENAME = 2;
+    static final byte REMOVE = 3;
+    // Length (of type + payload) and CRC, each an int; the type byte follows.
+    private static final int RECORD_HEADER = 8;
+    private static final int SNAPSHOT_MAGIC = 0x55535231; // "USR1"
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "users.snapshot";
+    private static final String SNAPSHOT_TEMP = "users.snapshot.tmp";
+
+    private final Path directory;
+    private final boolean fsyncEveryRecord;
+    private final long snapshotIntervalMillis;
+    private final long snapshotMinRecords;
+
+    // Guards the active file and the fields below. A lock instead of 'synchronized' so virtual
+    // threads waiting on a write or fsync here do not pin their carrier threads.
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel active;
+    private long activeGeneration;
+    private long recordsSinceSnapshot;
+    private boolean closed;
+
+    public UserStore(Path directory, boolean fsyncEveryRecord, long snapshotIntervalMillis, long snapshotMinRecords) {
+        this.directory = directory;
+        this.fsyncEveryRecord = fsyncEveryRecord;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.snapshotMinRecords = Math.max(1, snapshotMinRecords);
+    }
+
+    // Builds a store from the chat.users.* system properties.
+    public static UserStore fromConfig() {
+        return new UserStore(
+                Paths.get(ServerConfig.getString("chat.users.dir", "data/users")),
+                ServerConfig.getBoolean("chat.users.fsync", false),
+                ServerConfig.getLong("chat.users.snapshotIntervalMs", 60_000),
+                ServerConfig.getLong("chat.users.snapshotMinRecords", 10_000));
+    }
+
+    public long getSnapshotIntervalMillis() { return snapshotIntervalMillis; }
+
+    // True once enough changes have been logged that a new snapshot is worth writing.
+    public boolean isSnapshotDue() {
+        lock.lock();
+        try {
+            return recordsSinceSnapshot >= snapshotMinRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands the snapshot and every later log record to the handler, then opens a fresh log
+    // generation for appending. Must be called once, before the first append.
+    public void load(ReplayHandler handler) throws IOException {
+        lock.lock();
+        try {
+            Files.createDirectories(directory);
+            Files.deleteIfExists(directory.resolve(SNAPSHOT_TEMP));
+            long firstGeneration = readSnapshot(handler);
+
+            TreeMap<Long, Path> logs = new TreeMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        logs.put(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        Logger.warning(LogEvent.DATABASE, "Ignoring unexpected file in user store: {}", file);
+                    }
+                }
+            }
+            long records = 0;
+            for (Map.Entry<Long, Path> log : logs.entrySet()) {
+                if (log.getKey() < firstGeneration) {
+                    // Already contained in the snapshot; left behind by a crash right after it was written.
+                    Files.deleteIfExists(log.getValue());
+                } else {
+                    records += replayLog(log.getValue(), handler);
+                }
+            }
+            recordsSinceSnapshot = records;
+            long last = logs.isEmpty() ? firstGeneration - 1 : Math.max(firstGeneration - 1, logs.lastKey());
+            openGeneration(last + 1);
+            Logger.info(LogEvent.DATABASE, "User store replayed {} log record(s) after the snapshot in " + directory, records);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void appendCreate(UUID userId, String username) throws IOException {
+        write(CREATE, userId, username);
+    }
+
+    public void appendRename(UUID userId, String newUsername) throws IOException {
+        write(RENAME, userId, newUsername);
+    }
+
+    public void appendRemove(UUID userId) throws IOException {
+        write(REMOVE, userId, null);
+    }
+
+    // Switches appends to a new log generation and returns it. The caller must capture the
+    // directory while holding the same lock it uses around appends, then pass both to
+    // writeSnapshot; that way the snapshot holds exactly the changes logged before the switch.
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new ClosedChannelException();
+            active.force(false);
+            active.close();
+            openGeneration(activeGeneration + 1);
+            recordsSinceSnapshot = 0;
+            return activeGeneration;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes all users as the snapshot for 'generation' and deletes the logs it replaces.
+    // Runs without holding the store's lock, so logins carry on while it is written.
+    public void writeSnapshot(long generation, UUID[] userIds, String[] usernames) throws IOException {
+        Path temp = directory.resolve(SNAPSHOT_TEMP);
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(generation);
+            out.writeInt(userIds.length);
+            for (int i = 0; i < userIds.length; i++) {
+                out.writeLong(userIds[i].getMostSignificantBits());
+                out.writeLong(userIds[i].getLeastSignificantBits());
+                byte[] name = usernames[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+            }
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path log : files) {
+                String name = log.getFileName().toString();
+                try {
+                    if (Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())) < generation) {
+                        Files.deleteIfExists(log);
+                    }
+                } catch (NumberFormatException e) {
+                    // Not one of ours; load() already warned about it.
+                }
+            }
+        }
+        Logger.info(LogEvent.DATABASE, "User store snapshot written with {} user(s)", userIds.length);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            try {
+                if (active != null) {
+                    active.force(false);
+                    active.close();
+                }
+            } catch (IOException e) {
+                Logger.error(LogEvent.DATABASE, "Failed to close user store", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(byte type, UUID userId, String username) throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new ClosedChannelException();
+            byte[] name = username == null ? new byte[0] : username.getBytes(StandardCharsets.UTF_8);
+            int length = 1 + 16 + (username == null ? 0 : 4 + name.length);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+            record.putInt(length).putInt(0).put(type);
+            record.putLong(userId.getMostSignificantBits()).putLong(userId.getLeastSignificantBits());
+            if (username != null) record.putInt(name.length).put(name);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_HEADER, length);
+            record.putInt(4, (int) crc.getValue());
+            record.flip();
+            while (record.hasRemaining()) active.write(record);
+            recordsSinceSnapshot++;
+            if (fsyncEveryRecord) active.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void openGeneration(long generation) throws IOException {
+        active = FileChannel.open(directory.resolve(String.format("%020d", generation) + LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeGeneration = generation;
+    }
+
+    // Returns the first log generation not contained in the snapshot (1 without a snapshot).
+    private long readSnapshot(ReplayHandler handler) throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) return 1;
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a user snapshot: " + file);
+            long generation = in.readLong();
+            int count = in.readInt();
+            byte[] name = new byte[64];
+            for (int i = 0; i < count; i++) {
+                UUID userId = new UUID(in.readLong(), in.readLong());
+                int length = in.readInt();
+                if (length > name.length) name = new byte[length];
+                in.readFully(name, 0, length);
+                handler.onCreate(userId, new String(name, 0, length, StandardCharsets.UTF_8));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) throw new IOException("User snapshot failed its checksum: " + file);
+            return generation;
+        } catch (EOFException e) {
+            throw new IOException("User snapshot is truncated: " + file, e);
+        }
+    }
+
+    // Same torn-tail handling as the message log: stop at the first bad record and cut it off.
+    private long replayLog(Path file, ReplayHandler handler) throws IOException {
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) return 0;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            int position = 0;
+            while (position < size) {
+                int length = size - position >= RECORD_HEADER ? map.getInt(position) : -1;
+                boolean intact = length >= 1 + 16 && length <= size - position - RECORD_HEADER;
+                if (intact) {
+                    ByteBuffer body = map.duplicate();
+                    body.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length);
+                    crc.reset();
+                    crc.update(body);
+                    intact = (int) crc.getValue() == map.getInt(position + 4);
+                }
+                if (!intact) {
+                    Logger.warning(LogEvent.DATABASE, "Torn or corrupt record in {} at offset {}; truncating", file.getFileName(), position);
+                    channel.truncate(position);
+                    channel.force(true);
+                    break;
+                }
+                ByteBuffer record = map.duplicate();
+                record.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length);
+                dispatch(record, handler);
+                position += RECORD_HEADER + length;
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private static void dispatch(ByteBuffer record, ReplayHandler handler) {
+        byte type = record.get();
+        UUID userId = new UUID(record.getLong(), record.getLong());
+        switch (type) {
+            case CREATE:
+                handler.onCreate(userId, getString(record));
+                break;
+            case RENAME:
+                handler.onRename(userId, getString(record));
+                break;
+            case REMOVE:
+                handler.onRemove(userId);
+                break;
+            default:
+                Logger.warning(LogEvent.DATABASE, "Skipping user store record of unknown type {}", type);
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
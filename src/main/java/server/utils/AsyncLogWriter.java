@@ -0,0 +1,277 @@
+package server.utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// The background half of the Logger. Logging threads only drop records into a ring buffer;
+// this single writer thread formats them, prints them and appends them to the log file in batches
+// through one long-lived FileChannel. It also rolls the file by size and by age.
+class AsyncLogWriter implements Runnable {
+
+    // What a logging thread does when the ring buffer is full.
+    enum OverflowPolicy {
+        BLOCK, // Wait for the writer to make room. Nothing is lost.
+        DROP   // Discard the record and count it. Logging never slows the caller down.
+    }
+
+    // An unformatted log entry; formatting happens on the writer thread.
+    static final class LogRecord {
+        final long timeMillis;
+        final String level;
+        final Logger.LogEvent event;
+        final String message;
+        final Throwable throwable;
+        // Arguments for a "{}" pattern message; argCount is 0 for plain messages.
+        final Object arg1, arg2, arg3;
+        final int argCount;
+
+        LogRecord(long timeMillis, String level, Logger.LogEvent event, String message, Throwable throwable) {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.event = event;
+            this.message = message;
+            this.throwable = throwable;
+            this.arg1 = null;
+            this.arg2 = null;
+            this.arg3 = null;
+            this.argCount = 0;
+        }
+
+        LogRecord(long timeMillis, String level, Logger.LogEvent event, String pattern, Object arg1, Object arg2, Object arg3, int argCount) {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.event = event;
+            this.message = pattern;
+            this.throwable = null;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.arg3 = arg3;
+            this.argCount = argCount;
+        }
+    }
+
+    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter ROLL_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final int MAX_BATCH = 1024;
+
+    private final RingBuffer<LogRecord> buffer;
+    private final OverflowPolicy policy;
+    private final Path logPath;
+    private final boolean console;
+    private final long maxFileBytes;
+    private final long rollIntervalMillis;
+    private final long idleWaitNanos;
+    private final Runnable periodicTask;
+    private final long periodicIntervalMillis;
+    private long nextPeriodicRun;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+    private volatile Thread writerThread;
+    private volatile boolean running = true;
+
+    private FileChannel channel;
+    private long fileBytes;
+    private long fileOpenedAt;
+    private long lastSecond = -1;
+    private String lastSecondText;
+
+    // periodicTask runs on the writer thread every periodicIntervalMillis (e.g. config reloads).
+    AsyncLogWriter(Path logPath, Runnable periodicTask, long periodicIntervalMillis) {
+        this.logPath = logPath;
+        this.periodicTask = periodicTask;
+        this.periodicIntervalMillis = periodicIntervalMillis;
+        this.buffer = new RingBuffer<>(ServerConfig.getInt("chat.log.bufferSize", 65536));
+        OverflowPolicy configured;
+        try {
+            configured = OverflowPolicy.valueOf(ServerConfig.getString("chat.log.overflow", "BLOCK").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            configured = OverflowPolicy.BLOCK;
+        }
+        this.policy = configured;
+        this.console = ServerConfig.getBoolean("chat.log.console", true);
+        this.maxFileBytes = ServerConfig.getLong("chat.log.maxFileBytes", 10L * 1024 * 1024);
+        this.rollIntervalMillis = ServerConfig.getLong("chat.log.rollIntervalMs", 24L * 60 * 60 * 1000);
+        this.idleWaitNanos = ServerConfig.getLong("chat.log.flushIntervalMs", 5) * 1_000_000L;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "log-writer");
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+        // Drain whatever is still buffered when the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "log-writer-shutdown"));
+    }
+
+    void append(LogRecord record) {
+        if (buffer.offer(record)) return;
+        if (policy == OverflowPolicy.DROP || Thread.currentThread() == writerThread) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        // BLOCK: back off until the writer frees a slot.
+        while (!buffer.offer(record)) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            runPeriodicTask();
+            if (drainBatch() == 0) {
+                LockSupport.parkNanos(idleWaitNanos);
+            }
+        }
+    }
+
+    private void runPeriodicTask() {
+        if (periodicTask == null || periodicIntervalMillis <= 0) return;
+        long now = System.currentTimeMillis();
+        if (now < nextPeriodicRun) return;
+        nextPeriodicRun = now + periodicIntervalMillis;
+        try {
+            periodicTask.run();
+        } catch (RuntimeException e) {
+            System.err.println("Log writer task failed: " + e);
+        }
+    }
+
+    private void shutdown() {
+        running = false;
+        Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try { thread.join(1000); } catch (InterruptedException ignored) {}
+        }
+        while (drainBatch() > 0) { /* flush the tail */ }
+        closeChannel();
+    }
+
+    // Formats up to MAX_BATCH records into one block and writes it with a single call.
+    private synchronized int drainBatch() {
+        batch.setLength(0);
+        int count = 0;
+        LogRecord record;
+        while (count < MAX_BATCH && (record = buffer.poll()) != null) {
+            format(record);
+            count++;
+        }
+        long dropped = droppedCount.getAndSet(0);
+        if (dropped > 0) {
+            format(new LogRecord(System.currentTimeMillis(), "WARNING", Logger.LogEvent.SYSTEM_ERROR, dropped + " log records dropped because the log buffer was full", null));
+        }
+        if (batch.length() == 0) return 0;
+
+        String text = batch.toString();
+        if (console) System.out.print(text);
+        writeToFile(text);
+        return count;
+    }
+
+    private void format(LogRecord record) {
+        batch.append('[').append(timestamp(record.timeMillis)).append("] [").append(record.level).append("] [")
+             .append(record.event).append("] - ");
+        if (record.argCount == 0) {
+            batch.append(record.message);
+        } else {
+            appendPattern(record);
+        }
+        batch.append(System.lineSeparator());
+        if (record.throwable != null) {
+            StringWriter trace = new StringWriter();
+            record.throwable.printStackTrace(new PrintWriter(trace));
+            batch.append(trace);
+        }
+    }
+
+    // Substitutes the record's arguments for successive "{}" placeholders.
+    private void appendPattern(LogRecord record) {
+        String pattern = record.message;
+        int start = 0;
+        for (int i = 0; i < record.argCount; i++) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) break;
+            batch.append(pattern, start, placeholder);
+            batch.append(i == 0 ? record.arg1 : i == 1 ? record.arg2 : record.arg3);
+            start = placeholder + 2;
+        }
+        batch.append(pattern, start, pattern.length());
+    }
+
+    // Log timestamps have one-second resolution, so the formatted text is reused within a second.
+    private String timestamp(long timeMillis) {
+        long second = timeMillis / 1000;
+        if (second != lastSecond) {
+            lastSecond = second;
+            lastSecondText = dtf.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault()));
+        }
+        return lastSecondText;
+    }
+
+    private void writeToFile(String text) {
+        try {
+            rollIfNeeded();
+            if (channel == null) openChannel();
+            ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                fileBytes += channel.write(bytes);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write to log file: " + e.getMessage());
+            closeChannel();
+        }
+    }
+
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        fileOpenedAt = System.currentTimeMillis();
+    }
+
+    // Renames the current file to server.log.<timestamp> once it is too large or too old.
+    // Never replaces an earlier rolled file: a name already taken gets a ".1", ".2", ... suffix.
+    private void rollIfNeeded() throws IOException {
+        if (channel == null) return;
+        boolean tooLarge = maxFileBytes > 0 && fileBytes >= maxFileBytes;
+        boolean tooOld = rollIntervalMillis > 0 && System.currentTimeMillis() - fileOpenedAt >= rollIntervalMillis;
+        if (!tooLarge && !tooOld) return;
+        closeChannel();
+        String name = logPath.getFileName() + "." + ROLL_SUFFIX.format(LocalDateTime.now());
+        Path rolled = logPath.resolveSibling(name);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Files.move(logPath, rolled);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                rolled = logPath.resolveSibling(name + "." + attempt);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try { channel.close(); } catch (IOException ignored) {}
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package server.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free log-linear histogram of non-negative values (typically nanoseconds).
+// Values below 8 get a bucket each; above that, every power of two is split into 8 linear
+// sub-buckets, so a reported percentile is within 12.5% of the true value while the whole
+// range of a long fits in under 500 counters. Recording is one atomic increment of its bucket;
+// the shared count and sum are LongAdders, and max is only written when it grows, so threads
+// recording at once rarely contend.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(v));
+        count.increment();
+        sum.add(v);
+        long currentMax = max.get();
+        while (v > currentMax && !max.compareAndSet(currentMax, v)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() { return count.sum(); }
+
+    public long getMax() { return max.get(); }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value below which the given fraction (0..1) of recordings fall, as the upper bound
+    // of the bucket that contains it. 0 when nothing has been recorded.
+    public long valueAtPercentile(double fraction) {
+        long total = count.sum();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // e.g. "count=1200 mean=8.1us p50=6.1us p99=40.9us max=1.2ms"
+    public String summary() {
+        return "count=" + getCount()
+                + " mean=" + formatNanos((long) getMean())
+                + " p50=" + formatNanos(valueAtPercentile(0.50))
+                + " p99=" + formatNanos(valueAtPercentile(0.99))
+                + " p999=" + formatNanos(valueAtPercentile(0.999))
+                + " max=" + formatNanos(getMax());
+    }
+
+    // The same for plain values, e.g. "count=1200 mean=3.2 p50=3 p99=15 p999=31 max=40"
+    public String valueSummary() {
+        return "count=" + getCount()
+                + String.format(" mean=%.1f", getMean())
+                + " p50=" + valueAtPercentile(0.50)
+                + " p99=" + valueAtPercentile(0.99)
+                + " p999=" + valueAtPercentile(0.999)
+                + " max=" + getMax();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (magnitude - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int magnitude = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BITS);
+        return (SUB_BUCKETS + sub + 1) * width - 1;
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000) return nanos + "ns";
+        if (nanos < 1_000_000) return String.format("%.1fus", nanos / 1e3);
+        if (nanos < 1_000_000_000) return String.format("%.1fms", nanos / 1e6);
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
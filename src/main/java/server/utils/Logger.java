@@ -1,11 +1,12 @@
 package server.utils;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.Reader;
 import java.nio.file.*;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
 
 // A custom, lightweight logger for writing formatted messages to the console and a log file.
 // Note: This is an alternative implementation to the one using java.util.logging.
@@ -21,51 +22,223 @@ public class Logger {
         DATABASE
     }
 
-    private static final DateTimeFormatter dtf =
-            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // Severity levels, lowest first. A category only records entries at or above its minimum level.
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARNING,
+        ERROR,
+        OFF
+    }
+
     private static final Path LOG_PATH = Paths.get("logs/server.log");
+    // Optional properties file with per-category levels and sampling rates. It is polled while
+    // the server runs, so edits take effect without a restart.
+    private static final Path CONFIG_PATH = Paths.get(ServerConfig.getString("chat.log.config", "config/logging.properties"));
+
+    // Indexed by LogEvent ordinal. Replaced wholesale on change so readers need no locking.
+    private static volatile int[] minLevels;
+    private static volatile int[] sampleRates;
+    private static final AtomicLongArray sampleCounters = new AtomicLongArray(LogEvent.values().length);
+    private static long configLastModified;
+    // Buffers records and writes them from a single background thread.
+    // Configured with -Dchat.log.bufferSize, -Dchat.log.overflow (BLOCK or DROP),
+    // -Dchat.log.maxFileBytes and -Dchat.log.rollIntervalMs.
+    private static final AsyncLogWriter writer;
 
     // This static block runs once when the class is first loaded.
-    // It ensures the 'logs' directory exists before any logging occurs.
+    // It ensures the 'logs' directory exists before any logging occurs, then starts the writer.
     static {
         try {
             Files.createDirectories(LOG_PATH.getParent());
         } catch (IOException e) {
             System.err.println("Could not create logs directory: " + e.getMessage());
         }
+        // Read the file now, so the first poll does not re-apply it over settings made in code since.
+        configLastModified = configFileModified();
+        Properties initial = readConfig(configLastModified);
+        applyConfig(initial != null ? initial : new Properties());
+        writer = new AsyncLogWriter(LOG_PATH, Logger::reloadConfigIfChanged,
+                ServerConfig.getLong("chat.log.configPollMs", 2000));
+        writer.start();
     }
 
     // A private constructor prevents anyone from creating an instance of this utility class.
     private Logger() {}
 
+    public static void debug(LogEvent event, String message) {
+        if (shouldLog(Level.DEBUG, event)) log(Level.DEBUG, event, message, null);
+    }
+
     public static void info(LogEvent event, String message) {
-        log("INFO", event, message, null);
+        if (shouldLog(Level.INFO, event)) log(Level.INFO, event, message, null);
     }
 
     public static void warning(LogEvent event, String message) {
-        log("WARNING", event, message, null);
+        if (shouldLog(Level.WARNING, event)) log(Level.WARNING, event, message, null);
     }
 
     public static void error(LogEvent event, String message, Throwable t) {
-        log("ERROR", event, message, t);
+        if (shouldLog(Level.ERROR, event)) log(Level.ERROR, event, message, t);
+    }
+
+    // Lazy overloads: the supplier is only called when the record will actually be written.
+    public static void debug(LogEvent event, Supplier<String> message) {
+        if (shouldLog(Level.DEBUG, event)) log(Level.DEBUG, event, message.get(), null);
     }
 
-    // The core logging method. It's synchronized to prevent garbled output
-    // from multiple threads writing to the file at the same time.
-    private static synchronized void log(String level, LogEvent event, String message, Throwable t) {
-        String time = dtf.format(LocalDateTime.now());
-        String line = String.format("[%s] [%s] [%s] - %s", time, level, event, message);
+    public static void info(LogEvent event, Supplier<String> message) {
+        if (shouldLog(Level.INFO, event)) log(Level.INFO, event, message.get(), null);
+    }
+
+    public static void warning(LogEvent event, Supplier<String> message) {
+        if (shouldLog(Level.WARNING, event)) log(Level.WARNING, event, message.get(), null);
+    }
+
+    // Parameterized overloads. Each "{}" in the pattern is replaced by the next argument, on the
+    // writer thread, so a disabled call costs no string building at all and an enabled one
+    // does not format on the caller's thread. Arguments should be immutable (UUIDs, numbers, strings).
+    public static void debug(LogEvent event, String pattern, Object arg) {
+        if (shouldLog(Level.DEBUG, event)) logPattern(Level.DEBUG, event, pattern, arg, null, null, 1);
+    }
+
+    public static void debug(LogEvent event, String pattern, Object arg1, Object arg2) {
+        if (shouldLog(Level.DEBUG, event)) logPattern(Level.DEBUG, event, pattern, arg1, arg2, null, 2);
+    }
 
-        // Always print the formatted line to the console.
-        System.out.println(line);
-        if (t != null) t.printStackTrace(System.out);
+    public static void debug(LogEvent event, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(Level.DEBUG, event)) logPattern(Level.DEBUG, event, pattern, arg1, arg2, arg3, 3);
+    }
+
+    public static void info(LogEvent event, String pattern, Object arg) {
+        if (shouldLog(Level.INFO, event)) logPattern(Level.INFO, event, pattern, arg, null, null, 1);
+    }
+
+    public static void info(LogEvent event, String pattern, Object arg1, Object arg2) {
+        if (shouldLog(Level.INFO, event)) logPattern(Level.INFO, event, pattern, arg1, arg2, null, 2);
+    }
+
+    public static void info(LogEvent event, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(Level.INFO, event)) logPattern(Level.INFO, event, pattern, arg1, arg2, arg3, 3);
+    }
+
+    public static void warning(LogEvent event, String pattern, Object arg) {
+        if (shouldLog(Level.WARNING, event)) logPattern(Level.WARNING, event, pattern, arg, null, null, 1);
+    }
+
+    public static void warning(LogEvent event, String pattern, Object arg1, Object arg2) {
+        if (shouldLog(Level.WARNING, event)) logPattern(Level.WARNING, event, pattern, arg1, arg2, null, 2);
+    }
+
+    // Cheap guard for call sites that need to do real work (or box primitives) before logging.
+    public static boolean isEnabled(Level level, LogEvent event) {
+        return level.ordinal() >= minLevels[event.ordinal()];
+    }
 
-        // Append the log entry to the file. Using try-with-resources ensures the writer is always closed.
-        try (PrintWriter pw = new PrintWriter(new FileWriter(LOG_PATH.toFile(), true))) {
-            pw.println(line);
-            if (t != null) t.printStackTrace(pw);
+    // DEBUG and INFO records are additionally thinned out by the category's sampling rate.
+    // WARNING and ERROR are never sampled.
+    private static boolean shouldLog(Level level, LogEvent event) {
+        int index = event.ordinal();
+        if (level.ordinal() < minLevels[index]) return false;
+        if (level.ordinal() >= Level.WARNING.ordinal()) return true;
+        int rate = sampleRates[index];
+        return rate <= 1 || sampleCounters.getAndIncrement(index) % rate == 0;
+    }
+
+    // Changes the minimum level of one category on the running server.
+    public static void setLevel(LogEvent event, Level level) {
+        int[] updated = minLevels.clone();
+        updated[event.ordinal()] = level.ordinal();
+        minLevels = updated;
+    }
+
+    public static Level getLevel(LogEvent event) {
+        return Level.values()[minLevels[event.ordinal()]];
+    }
+
+    // Keeps only 1 in 'rate' DEBUG/INFO records of a category. 1 (the default) keeps everything.
+    public static void setSampleRate(LogEvent event, int rate) {
+        int[] updated = sampleRates.clone();
+        updated[event.ordinal()] = Math.max(1, rate);
+        sampleRates = updated;
+    }
+
+    // Number of records discarded since the last flush because the buffer was full (DROP policy).
+    public static long getDroppedCount() {
+        return writer.getDroppedCount();
+    }
+
+    // Re-reads the logging configuration file if it changed since the last check.
+    // Runs periodically on the log writer thread, so levels can be edited on a live server.
+    static void reloadConfigIfChanged() {
+        long modified = configFileModified();
+        if (modified == configLastModified) return;
+        configLastModified = modified;
+        Properties properties = readConfig(modified);
+        if (properties == null) return;
+        applyConfig(properties);
+        if (modified != 0L) {
+            info(LogEvent.SERVER_LIFECYCLE, "Logging configuration loaded from {}", CONFIG_PATH);
+        }
+    }
+
+    // The config file's modification time, or 0 if there is none.
+    private static long configFileModified() {
+        File file = CONFIG_PATH.toFile();
+        return file.isFile() ? file.lastModified() : 0L;
+    }
+
+    // The file's properties (empty if there is no file), or null if it could not be read.
+    private static Properties readConfig(long modified) {
+        Properties properties = new Properties();
+        if (modified == 0L) return properties;
+        try (Reader reader = Files.newBufferedReader(CONFIG_PATH)) {
+            properties.load(reader);
+            return properties;
         } catch (IOException e) {
-            System.err.println("Failed to write to log file: " + e.getMessage());
+            System.err.println("Could not read logging config " + CONFIG_PATH + ": " + e.getMessage());
+            return null;
         }
     }
-}
\ No newline at end of file
+
+    // Builds the level and sampling tables from system properties (chat.log.level,
+    // chat.log.level.<EVENT>, chat.log.sample.<EVENT>), with entries from the config file
+    // (level, level.<EVENT>, sample.<EVENT>) taking precedence.
+    private static void applyConfig(Properties file) {
+        LogEvent[] events = LogEvent.values();
+        int[] levels = new int[events.length];
+        int[] rates = new int[events.length];
+        Level defaultLevel = parseLevel(file.getProperty("level", ServerConfig.getString("chat.log.level", "INFO")), Level.INFO);
+        for (LogEvent event : events) {
+            String levelValue = file.getProperty("level." + event, ServerConfig.getString("chat.log.level." + event, null));
+            levels[event.ordinal()] = parseLevel(levelValue, defaultLevel).ordinal();
+            String rateValue = file.getProperty("sample." + event, ServerConfig.getString("chat.log.sample." + event, "1"));
+            try {
+                rates[event.ordinal()] = Math.max(1, Integer.parseInt(rateValue.trim()));
+            } catch (NumberFormatException e) {
+                rates[event.ordinal()] = 1;
+            }
+        }
+        minLevels = levels;
+        sampleRates = rates;
+    }
+
+    private static Level parseLevel(String value, Level fallback) {
+        if (value == null) return fallback;
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    // The core logging method. It only captures the record; formatting, console output and
+    // file I/O happen on the background writer, so callers never wait on the disk.
+    private static void log(Level level, LogEvent event, String message, Throwable t) {
+        writer.append(new AsyncLogWriter.LogRecord(System.currentTimeMillis(), level.name(), event, message, t));
+    }
+
+    private static void logPattern(Level level, LogEvent event, String pattern, Object arg1, Object arg2, Object arg3, int argCount) {
+        writer.append(new AsyncLogWriter.LogRecord(System.currentTimeMillis(), level.name(), event, pattern, arg1, arg2, arg3, argCount));
+    }
+}
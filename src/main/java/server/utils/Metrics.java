@@ -0,0 +1,166 @@
+package server.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import server.utils.Logger.LogEvent;
+
+// The server's metrics registry: named counters, gauges and histograms, shown by the admin STATS
+// command and appended to a file every -Dchat.metrics.dumpIntervalMs (default 60000, 0 = off;
+// the file is -Dchat.metrics.file, default logs/metrics.log).
+//
+// Recording is meant to stay on in production. Callers look a metric up once and keep the object;
+// after that a counter increment is a LongAdder add and a histogram record a few atomic adds.
+// Gauges cost nothing until a snapshot reads them.
+public final class Metrics {
+
+    // A monotonically increasing count. Its per-second rate is refreshed once a second.
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+        private long lastCount;
+        private volatile double ratePerSecond;
+
+        public void increment() { count.increment(); }
+
+        public void add(long amount) { count.add(amount); }
+
+        public long get() { return count.sum(); }
+
+        public double getRatePerSecond() { return ratePerSecond; }
+    }
+
+    private static final class Histogram {
+        final LatencyHistogram histogram;
+        // false for histograms of plain values such as a fan-out size.
+        final boolean nanos;
+
+        Histogram(LatencyHistogram histogram, boolean nanos) {
+            this.histogram = histogram;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private static final long startedAt = System.currentTimeMillis();
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static Thread sampler;
+    private static long lastSampleNanos = System.nanoTime();
+
+    private Metrics() {}
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    // A value read on demand, e.g. the size of a map. Registering a name again replaces it.
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // A histogram of durations in nanoseconds.
+    public static LatencyHistogram timer(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(new LatencyHistogram(), true)).histogram;
+    }
+
+    // A histogram of plain values, e.g. how many clients one message went to.
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(new LatencyHistogram(), false)).histogram;
+    }
+
+    // Publishes a timer that some other component already keeps, replacing any of the same name.
+    public static void registerTimer(String name, LatencyHistogram timer) {
+        histograms.put(name, new Histogram(timer, true));
+    }
+
+    // Every metric, one per line, sorted by name within counters, gauges and histograms.
+    public static String snapshot() {
+        StringBuilder out = new StringBuilder();
+        out.append("uptime=").append(formatUptime(System.currentTimeMillis() - startedAt)).append('\n');
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            out.append(entry.getKey()).append(": ").append(counter.get())
+               .append(String.format(" (%.1f/s)", counter.getRatePerSecond())).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            long value;
+            try {
+                value = entry.getValue().getAsLong();
+            } catch (RuntimeException e) {
+                value = -1;
+            }
+            out.append(entry.getKey()).append(": ").append(value).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram h = entry.getValue();
+            if (h.histogram.getCount() == 0) continue;
+            out.append(entry.getKey()).append(": ")
+               .append(h.nanos ? h.histogram.summary() : h.histogram.valueSummary()).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Starts the background thread that refreshes counter rates and writes the periodic dump.
+    // Calling it again has no effect.
+    public static synchronized void start() {
+        if (sampler != null) return;
+        long dumpIntervalMs = ServerConfig.getLong("chat.metrics.dumpIntervalMs", 60_000);
+        Path dumpFile = Paths.get(ServerConfig.getString("chat.metrics.file", "logs/metrics.log"));
+        sampler = new Thread(() -> runSampler(dumpIntervalMs, dumpFile), "metrics");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    private static void runSampler(long dumpIntervalMs, Path dumpFile) {
+        long nextDump = dumpIntervalMs > 0 ? System.currentTimeMillis() + dumpIntervalMs : Long.MAX_VALUE;
+        try {
+            while (true) {
+                Thread.sleep(1000);
+                sampleRates();
+                if (System.currentTimeMillis() >= nextDump) {
+                    dump(dumpFile);
+                    nextDump += dumpIntervalMs;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sampleRates() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+        for (Counter counter : counters.values()) {
+            long current = counter.get();
+            counter.ratePerSecond = (current - counter.lastCount) / seconds;
+            counter.lastCount = current;
+        }
+    }
+
+    private static void dump(Path file) {
+        String text = "--- " + LocalDateTime.now().format(TIMESTAMP) + " ---\n" + snapshot();
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Logger.error(LogEvent.SYSTEM_ERROR, "Could not write metrics to " + file, e);
+        }
+    }
+
+    private static String formatUptime(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%dd %02dh %02dm %02ds", seconds / 86_400, seconds / 3600 % 24, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,146 @@
+package server.utils;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per-command rate limits for the control port, enforced with token buckets at two levels:
+// each session has its own buckets, and each room has shared buckets (charged to the sender's
+// current room) so that many clients together still cannot flood one room.
+//
+// Limits are "<rate per second>/<burst>", e.g.
+//
+//     -Dchat.limit.SEND_MSG=20/40          per session
+//     -Dchat.limit.room.SEND_MSG=200/400   per room, all senders together
+//
+// A limit of "off" removes it; -Dchat.limit.enabled=false turns the limiter off altogether.
+public final class RateLimiter {
+    // The limited commands, by index. Anything else is never throttled.
+    public static final int LOGIN = 0;
+    public static final int LIST_ROOMS = 1;
+    public static final int JOIN_ROOM = 2;
+    public static final int SEND_MSG = 3;
+    public static final int HISTORY = 4;
+    public static final int EDIT_MSG = 5;
+    public static final int DELETE_MSG = 6;
+    public static final int SEARCH = 7;
+    public static final int WANT_TO_SEND_FILE = 8;
+    public static final int NOT_LIMITED = -1;
+
+    private static final String[] NAMES = {
+        "LOGIN", "LIST_ROOMS", "JOIN_ROOM", "SEND_MSG", "HISTORY", "EDIT_MSG", "DELETE_MSG", "SEARCH", "WANT_TO_SEND_FILE"
+    };
+    private static final String[] SESSION_DEFAULTS = {
+        "1/5", "5/10", "5/10", "20/40", "10/20", "5/10", "5/10", "5/10", "1/3"
+    };
+    private static final String[] ROOM_DEFAULTS = {
+        "off", "off", "off", "200/400", "off", "off", "off", "off", "off"
+    };
+
+    // A configured rate; null entries in the arrays below mean "no limit".
+    private static final class Limit {
+        final double ratePerSecond;
+        final int burst;
+
+        Limit(double ratePerSecond, int burst) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+        }
+    }
+
+    private final boolean enabled;
+    private final Limit[] sessionLimits;
+    private final Limit[] roomLimits;
+    private final ConcurrentHashMap<UUID, TokenBucket[]> roomBuckets = new ConcurrentHashMap<>();
+
+    private RateLimiter(boolean enabled, Limit[] sessionLimits, Limit[] roomLimits) {
+        this.enabled = enabled;
+        this.sessionLimits = sessionLimits;
+        this.roomLimits = roomLimits;
+    }
+
+    public static RateLimiter fromConfig() {
+        Limit[] sessionLimits = new Limit[NAMES.length];
+        Limit[] roomLimits = new Limit[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            sessionLimits[i] = parseLimit("chat.limit." + NAMES[i], SESSION_DEFAULTS[i]);
+            roomLimits[i] = parseLimit("chat.limit.room." + NAMES[i], ROOM_DEFAULTS[i]);
+        }
+        return new RateLimiter(ServerConfig.getBoolean("chat.limit.enabled", true), sessionLimits, roomLimits);
+    }
+
+    // The limiter index of a text command, or NOT_LIMITED.
+    public static int commandIndex(String command) {
+        switch (command) {
+            case "LOGIN": return LOGIN;
+            case "LIST_ROOMS": return LIST_ROOMS;
+            case "JOIN_ROOM": return JOIN_ROOM;
+            case "SEND_MSG": return SEND_MSG;
+            case "HISTORY": return HISTORY;
+            case "EDIT_MSG": return EDIT_MSG;
+            case "DELETE_MSG": return DELETE_MSG;
+            case "SEARCH": return SEARCH;
+            case "WANT_TO_SEND_FILE": return WANT_TO_SEND_FILE;
+            default: return NOT_LIMITED;
+        }
+    }
+
+    public static String commandName(int command) {
+        return NAMES[command];
+    }
+
+    // A fresh set of buckets for one session. Only the owning session uses it.
+    public TokenBucket[] newSessionBuckets() {
+        return createBuckets(sessionLimits);
+    }
+
+    // Takes a token for the command from the session's bucket and, if the command is limited per
+    // room and roomId is known, from the room's bucket. Returns 0 if the command may run, otherwise
+    // roughly how many milliseconds to wait before retrying. A command the room refuses does not use
+    // up the session's token.
+    public long tryAcquire(TokenBucket[] sessionBuckets, int command, UUID roomId) {
+        if (!enabled || command == NOT_LIMITED) return 0;
+        long now = System.nanoTime();
+        TokenBucket sessionBucket = sessionBuckets[command];
+        if (sessionBucket != null && !sessionBucket.tryAcquire(now)) return retryMillis(sessionBucket);
+        if (roomId == null || roomLimits[command] == null) return 0;
+        TokenBucket[] buckets = roomBuckets.get(roomId);
+        if (buckets == null) buckets = roomBuckets.computeIfAbsent(roomId, id -> createBuckets(roomLimits));
+        TokenBucket roomBucket = buckets[command];
+        if (roomBucket.tryAcquire(now)) return 0;
+        // Refused by the room: the session's token was not used after all.
+        if (sessionBucket != null) sessionBucket.refund();
+        return retryMillis(roomBucket);
+    }
+
+    private static long retryMillis(TokenBucket bucket) {
+        return Math.max(1, (bucket.nanosUntilAvailable() + 999_999) / 1_000_000);
+    }
+
+    private static TokenBucket[] createBuckets(Limit[] limits) {
+        TokenBucket[] buckets = new TokenBucket[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            if (limits[i] != null) buckets[i] = new TokenBucket(limits[i].ratePerSecond, limits[i].burst);
+        }
+        return buckets;
+    }
+
+    private static Limit parseLimit(String key, String defaultValue) {
+        String value = ServerConfig.getString(key, defaultValue);
+        if ("off".equalsIgnoreCase(value)) return null;
+        try {
+            int slash = value.indexOf('/');
+            double rate = Double.parseDouble(slash < 0 ? value : value.substring(0, slash).trim());
+            int burst = slash < 0 ? Math.max(1, (int) Math.ceil(rate)) : Integer.parseInt(value.substring(slash + 1).trim());
+            if (rate > 0 && burst >= 1) return new Limit(rate, burst);
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        System.err.println("Invalid rate limit for " + key + ": " + value + ". Using default " + defaultValue);
+        return "off".equalsIgnoreCase(defaultValue) ? null : parseLimit(defaultValue);
+    }
+
+    private static Limit parseLimit(String value) {
+        int slash = value.indexOf('/');
+        return new Limit(Double.parseDouble(value.substring(0, slash)), Integer.parseInt(value.substring(slash + 1)));
+    }
+}
@@ -0,0 +1,40 @@
+package server.utils;
+
+// Central place for start-up options. Values are read from JVM system properties
+// (e.g. -Dchat.engine=nio) so the server can be tuned without code changes.
+public final class ServerConfig {
+
+    private ServerConfig() {}
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid integer for " + key + ": " + value + ". Using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for " + key + ": " + value + ". Using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
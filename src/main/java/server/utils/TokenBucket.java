@@ -0,0 +1,49 @@
+package server.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A lock-free token bucket: refills at ratePerSecond up to burst tokens, and each call to
+// tryAcquire takes one token if there is one.
+//
+// Instead of a token count plus a refill timestamp, the whole state is a single long: the time
+// at which the bucket will be full again. A token is available while that time is less than
+// one burst ahead of now, and taking one pushes it forward by one token's worth of time. This
+// keeps a check at one volatile read and one CAS, with no separate refill step.
+public final class TokenBucket {
+    private final long nanosPerToken;
+    // How far the "full again" time may run ahead of now: the burst, minus the token being taken.
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) throw new IllegalArgumentException("rate and burst must be positive");
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = nanosPerToken * (burst - 1);
+        // Starts full.
+        this.fullAt = new AtomicLong(System.nanoTime() - nanosPerToken);
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long start = current - nowNanos < 0 ? nowNanos : current;
+            if (start - nowNanos > burstNanos) return false;
+            if (fullAt.compareAndSet(current, start + nanosPerToken)) return true;
+        }
+    }
+
+    // Gives back a token taken by tryAcquire, e.g. when a second limit refused the same request.
+    public void refund() {
+        fullAt.addAndGet(-nanosPerToken);
+    }
+
+    // How long until tryAcquire would succeed; 0 if a token is available now.
+    public long nanosUntilAvailable() {
+        long now = System.nanoTime();
+        return Math.max(0, fullAt.get() - now - burstNanos);
+    }
+}